@@ -0,0 +1,1028 @@
+/**
+ * File: Bench.java
+ * Description: Benchmarks for the proxy and server
+ * Author: Joseph Jia (josephji)
+ * 
+ * This file runs a server in-process and talks to it over loopback RMI,
+ * so the benchmarks can run on a single machine.
+ * 
+ * Usage: java Bench <benchmark> [args...]
+ *     transfer [size_mb] [window] - MB/s of the getFileInfo loop vs the stream
+ *     invalidate [proxies] [rounds] - writer latency with leases revoked by callbacks
+ *     meta [paths] [rounds] - per-path serverExists calls vs one statFiles
+ *     ttfb [size_mb] - time to first byte and to the whole file, with and without partial fetch
+ *     churn [entries] [ops] - close cost (new version + stale cleanup) as the cache grows
+ *     replay [trace|synthetic] [capacity_mb] - byte hit ratio and bytes fetched per eviction policy
+ *     cache [entries] [policy] - Cache put, checkStaleVersions and checkEvict cost by population
+ *     ops [threads] [seconds] [name=value...] - open/read/close rate and latency through the
+ *                                              proxy, on one file and many, over RMI and direct
+ *     writeback [max_kb] [name=value...] - write and close throughput by file size,
+ *                                         rtt=<ms> to add a round trip to server calls
+ *     randread [size_mb] [reads] - latency of small random reads, with and without mmap
+ *     commit [size_mb] [seconds] - whole-file uploads racing streamed reads of the same file
+ *     locks [max_paths] [threads] - lock acquire rate and heap held by the lock table as the
+ *                                   number of distinct paths grows, per-path map vs striped
+ *     dedup [size_mb] - bytes sent to fetch an edited copy of a cached file and to upload
+ *                       another, with and without content-defined chunking
+ *     compress [size_mb] - bytes sent, time and CPU to read and write a log-like file and
+ *                          a random one, with and without wire compression
+ *
+ * Results from a run of every benchmark are kept in bench-baseline.txt.
+ * Correctness checks live in tests/ and run with make test.
+ */
+
+// Imported Libraries
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.lang.ref.Reference;
+
+public class Bench {
+    public static final int PORT = 11199;
+    public static final int ROUNDS = 5;
+    public static Server server; // in-process server, to call without RMI
+
+    /*
+     * Function: startServer
+     * Starts a server on a fresh root directory and connects the proxy stub
+     * 
+     * @return root directory of the server
+     */
+    public static File startServer () throws Exception {
+        File root = Files.createTempDirectory("bench-server").toFile();
+        root.deleteOnExit();
+        server = Server.start(PORT, root.getPath());
+        Registry registry = LocateRegistry.getRegistry("127.0.0.1", PORT);
+        Proxy.stub = (RMIInterface) registry.lookup("RMIInterface");
+        return root;
+    }
+
+    /*
+     * Function: startProxy
+     * Sets up the proxy on a fresh cache directory, as its main does,
+     * using whatever stub is set
+     * 
+     * @param capacity - cache size
+     * @param opts - proxy options given as name=value
+     * @return factory for client handlers, one per simulated client
+     */
+    public static Proxy.FileHandlingFactory startProxy (int capacity, String[] opts) throws Exception {
+        File dir = Files.createTempDirectory("bench-cache").toFile();
+        dir.deleteOnExit();
+        Proxy.cache_dir = dir.getPath();
+        Proxy.max_size = capacity;
+        Proxy.options = new HashMap<String, String>();
+        for (String arg : opts) {
+            String[] opt = arg.split("=", 2);
+            if (opt.length == 2) {
+                Proxy.options.put(opt[0], opt[1]);
+            }
+        }
+        Proxy.setup();
+        Proxy.negotiate();
+        if (Proxy.write_behind != null) {
+            Proxy.write_behind.replay();
+        }
+        Proxy.restoreCache();
+        return new Proxy.FileHandlingFactory();
+    }
+
+    /*
+     * Function: makeFile
+     * Creates a file of random bytes in the given directory
+     * 
+     * @param dir - directory to create the file in
+     * @param name - name of the file
+     * @param size - size of the file in bytes
+     */
+    public static void makeFile (File dir, String name, long size) throws IOException {
+        Random rand = new Random(size);
+        byte[] buf = new byte[Proxy.CHUNK_SIZE];
+        try (FileOutputStream out = new FileOutputStream(new File(dir, name))) {
+            for (long pos = 0; pos < size; pos += buf.length) {
+                rand.nextBytes(buf);
+                out.write(buf, 0, (int) Math.min(buf.length, size - pos));
+            }
+        }
+    }
+
+    /*
+     * Function: loopFetch
+     * Fetches a file the old way, one getFileInfo call per chunk
+     * 
+     * @param path - server pathname of the file
+     * @param raf - local file to copy the contents into
+     */
+    public static void loopFetch (String path, RandomAccessFile raf) throws IOException {
+        long length = Proxy.stub.getFileLength(path);
+        long curr_pos = 0;
+        while (curr_pos < length) {
+            byte[] buf = Proxy.stub.getFileInfo(path, curr_pos);
+            raf.seek(curr_pos);
+            raf.write(buf);
+            curr_pos += buf.length;
+        }
+    }
+
+    /*
+     * Function: transfer
+     * Compares MB/s of the chunk loop against the streaming fetch
+     * 
+     * @param size_mb - size of the file to fetch
+     * @param window - chunks per stream read
+     */
+    public static void transfer (int size_mb, int window) throws Exception {
+        File root = startServer();
+        long size = (long) size_mb * 1000000;
+        makeFile(root, "data", size);
+        File local = File.createTempFile("bench-local", null);
+        local.deleteOnExit();
+        Proxy.window = window;
+
+        for (int i = 0; i <= ROUNDS; i++) {
+            RandomAccessFile raf = new RandomAccessFile(local, "rw");
+            long start = System.nanoTime();
+            loopFetch("data", raf);
+            double loop_secs = (System.nanoTime() - start) / 1e9;
+            raf.setLength(0);
+
+            start = System.nanoTime();
+            Proxy.fetchFile("data", raf);
+            double stream_secs = (System.nanoTime() - start) / 1e9;
+            raf.close();
+
+            // first round is warmup
+            if (i > 0) {
+                System.out.printf("round %d: loop %.1f MB/s, stream %.1f MB/s (window %d)%n",
+                    i, size_mb / loop_secs, size_mb / stream_secs, window);
+            }
+        }
+    }
+
+    /*
+     * Class: Listener
+     * Callback that records when its last notice arrived
+     */
+    public static class Listener extends UnicastRemoteObject implements ProxyCallback {
+        public volatile long notified;
+
+        public Listener () throws java.rmi.RemoteException {
+            super(0);
+        }
+
+        public void invalidate (String path, int version) {
+            notified = System.nanoTime();
+        }
+    }
+
+    /*
+     * Function: invalidate
+     * Times a write to a file that every proxy holds a lease on, first
+     * with leases revoked by callbacks and then with anonymous leases
+     * that the writer has to wait out.
+     * 
+     * @param proxies - number of registered callbacks holding a lease
+     * @param rounds - number of writes to time
+     */
+    public static void invalidate (int proxies, int rounds) throws Exception {
+        File root = startServer();
+        makeFile(root, "data", 1000);
+        Listener[] listeners = new Listener[proxies];
+        int[] ids = new int[proxies];
+        for (int i = 0; i < proxies; i++) {
+            listeners[i] = new Listener();
+            ids[i] = Proxy.stub.registerProxy(listeners[i]);
+        }
+        FileDelta delta = new FileDelta(1000, new long[] {0}, new byte[][] {new byte[100]});
+
+        for (int i = 0; i <= rounds; i++) {
+            for (int id : ids) {
+                Proxy.stub.validate("data", id);
+            }
+            long start = System.nanoTime();
+            Proxy.stub.updateRanges("data", 0, delta);
+            double write_ms = (System.nanoTime() - start) / 1e6;
+            double notice_ms = 0;
+            for (Listener l : listeners) {
+                notice_ms = Math.max(notice_ms, (l.notified - start) / 1e6);
+            }
+
+            for (int id : ids) {
+                Proxy.stub.validate("data");
+            }
+            start = System.nanoTime();
+            Proxy.stub.updateRanges("data", 0, delta);
+            double wait_ms = (System.nanoTime() - start) / 1e6;
+
+            // first round is warmup
+            if (i > 0) {
+                System.out.printf("round %d: %d proxies, callbacks %.1f ms (last notice %.1f ms), "
+                    + "lease wait %.1f ms (lease %d ms)%n",
+                    i, proxies, write_ms, notice_ms, wait_ms, Server.lease_ms);
+            }
+        }
+    }
+
+    /*
+     * Function: meta
+     * Times getting the versions of many files one call at a time
+     * against a single statFiles batch
+     * 
+     * @param num_paths - number of files to look up
+     * @param rounds - number of timed rounds
+     */
+    public static void meta (int num_paths, int rounds) throws Exception {
+        File root = startServer();
+        String[] paths = new String[num_paths];
+        for (int i = 0; i < num_paths; i++) {
+            paths[i] = "f" + i;
+            makeFile(root, paths[i], 100);
+        }
+
+        for (int i = 0; i <= rounds; i++) {
+            long start = System.nanoTime();
+            for (String path : paths) {
+                Proxy.stub.serverExists(path);
+                Proxy.stub.getFileLength(path);
+            }
+            double loop_ms = (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            Proxy.stub.statFiles(paths);
+            double batch_ms = (System.nanoTime() - start) / 1e6;
+
+            // first round is warmup
+            if (i > 0) {
+                System.out.printf("round %d: %d paths, per-path %.2f ms, batch %.2f ms%n",
+                    i, num_paths, loop_ms, batch_ms);
+            }
+        }
+    }
+
+    /*
+     * Function: ttfb
+     * Times a cache miss up to the point a reader can read its first
+     * byte, and up to the whole file, with partial fetch off and on
+     * 
+     * @param size_mb - size of the file to fetch
+     */
+    public static void ttfb (int size_mb) throws Exception {
+        File root = startServer();
+        makeFile(root, "data", (long) size_mb * 1000000);
+        File dir = Files.createTempDirectory("bench-cache").toFile();
+        Proxy.cache_dir = dir.getPath();
+        Proxy.cache = new Cache(Long.MAX_VALUE);
+        Proxy.in_flight = new java.util.concurrent.ConcurrentHashMap<String, java.util.concurrent.CompletableFuture<File>>();
+        Proxy.filling = new java.util.concurrent.ConcurrentHashMap<String, PartialFile>();
+        Proxy.window = 16;
+        String dir_path = dir.getPath() + "/data";
+
+        for (int i = 0; i <= ROUNDS; i++) {
+            for (boolean partial : new boolean[] {false, true}) {
+                Proxy.partial = partial;
+                long start = System.nanoTime();
+                File file = Proxy.fetchIntoCache("data", dir_path, 1);
+                PartialFile part = Proxy.filling.get(file.getPath());
+                if (part != null) {
+                    part.await(1);
+                }
+                double first_ms = (System.nanoTime() - start) / 1e6;
+                if (part != null) {
+                    part.await(part.length);
+                }
+                double all_ms = (System.nanoTime() - start) / 1e6;
+
+                Proxy.cache.removeClient(file.getPath(), false, 0);
+                while (Proxy.filling.containsKey(file.getPath())) {
+                    Thread.sleep(1);
+                }
+                Proxy.cache.remove(file.getPath());
+
+                // first round is warmup
+                if (i > 0) {
+                    System.out.printf("round %d: %d MB, partial %b: first byte %.1f ms, whole file %.1f ms%n",
+                        i, size_mb, partial, first_ms, all_ms);
+                }
+            }
+        }
+        dir.delete();
+    }
+
+    /*
+     * Function: churn
+     * Times closes that install a new version of a few hot paths while
+     * the cache holds many other entries, half of them pinned. With the
+     * version index and the idle-only clock, the cost shouldn't grow with
+     * the number of entries.
+     * 
+     * @param max_entries - largest cache population to try
+     * @param ops - closes timed per population
+     */
+    public static void churn (int max_entries, int ops) throws Exception {
+        File dir = Files.createTempDirectory("bench-cache").toFile();
+        byte[] data = new byte[1000];
+        for (int num = 1000; num <= max_entries; num *= 10) {
+            Cache cache = new Cache(ops * (long) data.length / 2);
+
+            // entries that are never touched; they have no file, so no size
+            for (int i = 0; i < num; i++) {
+                String path = dir.getPath() + "/cold" + i + "-1";
+                cache.put(path, new File(path), i % 2 == 0);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 1; i <= ops; i++) {
+                String path = dir.getPath() + "/hot" + (i % 16) + "-" + i;
+                File file = new File(path);
+                try (FileOutputStream out = new FileOutputStream(file)) {
+                    out.write(data);
+                }
+                cache.put(path, file, true);
+                cache.removeClient(path, false, 0);
+            }
+            double us = (System.nanoTime() - start) / 1e3 / ops;
+            System.out.printf("%d entries: %.1f us per close%n", num, us);
+
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /*
+     * Function: syntheticTrace
+     * Makes a trace of small hot files read with a skewed popularity,
+     * some of them rewritten, with a one-time read of a big cold file
+     * every 500 opens
+     * 
+     * @param capacity - cache size the trace is meant for
+     * @return trace lines, in the format of the proxy's trace option
+     */
+    public static ArrayList<String> syntheticTrace (long capacity) {
+        Random rand = new Random(440);
+        int num_hot = 400;
+        long[] sizes = new long[num_hot];
+        for (int i = 0; i < num_hot; i++) {
+            sizes[i] = 10000 + rand.nextInt(90000);
+        }
+        ArrayList<String> trace = new ArrayList<String>();
+        for (int op = 1; op <= 50000; op++) {
+            if (op % 500 == 0) {
+                trace.add("open scan" + op + " " + (capacity * 2 / 5));
+                continue;
+            }
+            // squaring a uniform pick skews it toward low file numbers
+            double u = rand.nextDouble();
+            int i = (int) (u * u * num_hot);
+            trace.add("open hot" + i + " " + sizes[i]);
+            if (rand.nextInt(20) == 0) {
+                trace.add("write hot" + i + " " + sizes[i]);
+            }
+        }
+        return trace;
+    }
+
+    /*
+     * Function: replay
+     * Replays an open/write trace against a Cache with each eviction
+     * policy. An open that misses fetches the whole file from the server,
+     * and a write installs a new version in the cache as close does.
+     * Files are sparse, so big traces don't need real disk space.
+     * 
+     * @param source - trace file written by the proxy's trace option, or synthetic
+     * @param capacity_mb - cache size
+     */
+    public static void replay (String source, int capacity_mb) throws Exception {
+        long capacity = capacity_mb * 1000000L;
+        List<String> trace = source.equals("synthetic")
+            ? syntheticTrace(capacity) : Files.readAllLines(Path.of(source));
+
+        for (String policy : new String[] {"lru", "gdsf", "tinylfu"}) {
+            File dir = Files.createTempDirectory("bench-cache").toFile();
+            Cache cache = new Cache(capacity, null, EvictionPolicy.named(policy));
+            HashMap<String, Integer> versions = new HashMap<String, Integer>();
+            long requested = 0;
+            long hit_bytes = 0;
+            long fetched = 0;
+
+            for (String line : trace) {
+                String[] op = line.trim().split(" ");
+                if (op.length != 3 || op[0].startsWith("#")) {
+                    continue;
+                }
+                String name = op[1].replace('/', '_');
+                long size = Long.parseLong(op[2]);
+                int version = versions.getOrDefault(name, 1);
+                String cache_path = dir.getPath() + "/" + name + "-" + version;
+
+                if (op[0].equals("open")) {
+                    requested += size;
+                    if (cache.acquire(cache_path) != null) {
+                        hit_bytes += size;
+                    }
+                    else {
+                        fetched += size;
+                        cache.put(cache_path, sparseFile(cache_path, size), true);
+                    }
+                    cache.removeClient(cache_path, false, 0);
+                }
+                else if (op[0].equals("write")) {
+                    versions.put(name, version + 1);
+                    String new_path = dir.getPath() + "/" + name + "-" + (version + 1);
+                    cache.put(new_path, sparseFile(new_path, size), true);
+                    cache.removeClient(new_path, false, 0);
+                }
+            }
+
+            System.out.printf("%-8s byte hit ratio %.3f, fetched %.1f MB of %.1f MB opened%n",
+                policy, hit_bytes / (double) Math.max(1, requested), fetched / 1e6, requested / 1e6);
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /*
+     * Function: cache
+     * Times the Cache's hot operations as its population grows: put of a
+     * new entry, checkStaleVersions on a path with no stale versions, and
+     * checkEvict when a tenth of the entries have to go.
+     * 
+     * @param max_entries - largest cache population to try
+     * @param policy - eviction policy to use
+     */
+    public static void cache (int max_entries, String policy) throws Exception {
+        // the first pass is warmup
+        for (int num = 1000, pass = 0; num <= max_entries; pass++) {
+            File dir = Files.createTempDirectory("bench-cache").toFile();
+            String[] paths = new String[num];
+            for (int i = 0; i < num; i++) {
+                paths[i] = dir.getPath() + "/f" + i + "-1";
+                sparseFile(paths[i], 1000);
+            }
+            Cache cache = new Cache(Long.MAX_VALUE, null, EvictionPolicy.named(policy));
+
+            long start = System.nanoTime();
+            for (String path : paths) {
+                cache.put(path, new File(path));
+            }
+            double put_ns = (System.nanoTime() - start) / (double) num;
+
+            start = System.nanoTime();
+            for (String path : paths) {
+                cache.checkStaleVersions(path);
+            }
+            double stale_ns = (System.nanoTime() - start) / (double) num;
+
+            int evict = num / 10;
+            cache.max_size = cache.curr_size.get() - evict * 1000L;
+            start = System.nanoTime();
+            cache.checkEvict();
+            double evict_ns = (System.nanoTime() - start) / (double) evict;
+
+            if (pass > 0) {
+                System.out.printf("%s, %d entries: put %.0f ns, checkStaleVersions %.0f ns, checkEvict %.0f ns per entry evicted%n",
+                    policy, num, put_ns, stale_ns, evict_ns);
+                num *= 10;
+            }
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /*
+     * Function: ops
+     * Runs open/read/close loops through the proxy's handlers from many
+     * threads, first all on one file and then each on its own files.
+     * Each is run over loopback RMI and with the stub set to the server
+     * object itself, which leaves out serialization and the network, so
+     * the gap between the two is the cost of RMI.
+     * 
+     * @param threads - number of client threads
+     * @param seconds - how long to run each case
+     * @param opts - proxy options given as name=value
+     */
+    public static void ops (int threads, int seconds, String[] opts) throws Exception {
+        File root = startServer();
+        int files_per_thread = 16;
+        for (int i = 0; i < threads * files_per_thread; i++) {
+            makeFile(root, "f" + i, 4096);
+        }
+        RMIInterface rmi = Proxy.stub;
+        Proxy.FileHandlingFactory factory = startProxy(100000000, opts);
+
+        for (String transport : new String[] {"rmi", "direct"}) {
+            Proxy.stub = transport.equals("rmi") ? rmi : server;
+            for (boolean shared : new boolean[] {true, false}) {
+                Histogram hist = new Histogram();
+                AtomicLong errors = new AtomicLong(0);
+                long deadline = System.nanoTime() + seconds * 1000000000L;
+                Thread[] workers = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    int id = t;
+                    workers[t] = new Thread(() -> {
+                        FileHandling client = factory.newclient();
+                        byte[] buf = new byte[8192];
+                        for (int n = 0; System.nanoTime() < deadline; n++) {
+                            String path = shared ? "f0" : "f" + (id * files_per_thread + n % files_per_thread);
+                            long start = System.nanoTime();
+                            int fd = client.open(path, FileHandling.OpenOption.READ);
+                            if (fd < 0) {
+                                errors.incrementAndGet();
+                                continue;
+                            }
+                            while (client.read(fd, buf) > 0) {
+                            }
+                            client.close(fd);
+                            hist.record(System.nanoTime() - start);
+                        }
+                        client.clientdone();
+                    });
+                    workers[t].start();
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                System.out.printf("%-6s %d threads, %-10s %.0f ops/s, %s, %d errors%n",
+                    transport, threads, shared ? "one file:" : "own files:",
+                    hist.count() / (double) seconds, hist.summary(), errors.get());
+            }
+        }
+    }
+
+    /*
+     * Function: delayed
+     * Wraps a stub so every call first waits out a network round trip
+     * 
+     * @param stub - stub to wrap
+     * @param rtt - round trip time to add to each call, in ms
+     * @return the wrapped stub
+     */
+    public static RMIInterface delayed (RMIInterface stub, int rtt) {
+        java.lang.reflect.InvocationHandler handler = (obj, method, args) -> {
+            Thread.sleep(rtt);
+            try {
+                return method.invoke(stub, args);
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                throw e.getCause();
+            }
+        };
+        return (RMIInterface) java.lang.reflect.Proxy.newProxyInstance(
+            RMIInterface.class.getClassLoader(), new Class<?>[] {RMIInterface.class}, handler);
+    }
+
+    /*
+     * Function: writeback
+     * Writes whole files of growing size through the proxy and times the
+     * writes and the close that sends them to the server
+     * 
+     * @param max_kb - largest file size to try
+     * @param opts - proxy options given as name=value, and rtt=<ms> to
+     *               add a network round trip to every server call
+     */
+    public static void writeback (int max_kb, String[] opts) throws Exception {
+        File root = startServer();
+        FileHandling client = startProxy(1000000000, opts).newclient();
+        int rtt = Integer.parseInt(Proxy.options.getOrDefault("rtt", "0"));
+        if (rtt > 0) {
+            Proxy.stub = delayed(Proxy.stub, rtt);
+        }
+        Random rand = new Random(440);
+        for (int kb = 4; kb <= max_kb; kb *= 4) {
+            byte[] data = new byte[kb * 1024];
+            rand.nextBytes(data);
+            String path = "w" + kb;
+            double write_secs = 0;
+            double close_secs = 0;
+            for (int i = 0; i <= ROUNDS; i++) {
+                long start = System.nanoTime();
+                int fd = client.open(path, FileHandling.OpenOption.CREATE);
+                if (fd < 0 || client.write(fd, data) != data.length) {
+                    throw new IOException("write of " + path + " failed");
+                }
+                long written = System.nanoTime();
+                if (client.close(fd) != 0) {
+                    throw new IOException("close of " + path + " failed");
+                }
+                // first round is warmup
+                if (i > 0) {
+                    write_secs += (written - start) / 1e9;
+                    close_secs += (System.nanoTime() - written) / 1e9;
+                }
+            }
+            double mb = data.length * (double) ROUNDS / 1e6;
+            System.out.printf("%6d KB: open+write %.1f MB/s, close %.1f MB/s, overall %.1f MB/s%n",
+                kb, mb / write_secs, mb / close_secs, mb / (write_secs + close_secs));
+        }
+        client.clientdone();
+    }
+
+    /*
+     * Function: randread
+     * Times small reads at random offsets of a cached file through the
+     * proxy's handlers, with read fds on a shared map and on a
+     * RandomAccessFile
+     * 
+     * @param size_mb - size of the file
+     * @param reads - reads timed per case
+     */
+    public static void randread (int size_mb, int reads) throws Exception {
+        File root = startServer();
+        long size = size_mb * 1000000L;
+        makeFile(root, "data", size);
+        for (boolean mmap : new boolean[] {false, true}) {
+            FileHandling client = startProxy(Integer.MAX_VALUE,
+                new String[] {"mmap=" + mmap, "block_threshold=" + Long.MAX_VALUE}).newclient();
+            // the first open streams the file in; time an open of the complete copy
+            client.close(client.open("data", FileHandling.OpenOption.READ));
+            while (!Proxy.filling.isEmpty()) {
+                Thread.sleep(1);
+            }
+            int fd = client.open("data", FileHandling.OpenOption.READ);
+            if (fd < 0) {
+                throw new IOException("open failed: " + fd);
+            }
+            Random rand = new Random(440);
+            byte[] buf = new byte[64];
+            for (int i = 0; i <= ROUNDS; i++) {
+                Histogram hist = new Histogram();
+                for (int n = 0; n < reads; n++) {
+                    long pos = (long) (rand.nextDouble() * (size - buf.length));
+                    long start = System.nanoTime();
+                    client.lseek(fd, pos, FileHandling.LseekOption.FROM_START);
+                    client.read(fd, buf);
+                    hist.record(System.nanoTime() - start);
+                }
+                // first round is warmup
+                if (i > 0) {
+                    System.out.printf("round %d: mmap %b, lseek+read of %d bytes: %s%n",
+                        i, mmap, buf.length, hist.summary());
+                }
+            }
+            client.close(fd);
+            client.clientdone();
+        }
+    }
+
+    /*
+     * Function: commit
+     * Two writers overwrite one file through upload sessions while two
+     * readers stream it over RMI, timing each commit and each read.
+     * 
+     * @param size_mb - size of the file
+     * @param seconds - how long to run
+     */
+    public static void commit (int size_mb, int seconds) throws Exception {
+        startServer();
+        int size = size_mb * 1000000;
+        int piece = 16 * Server.CHUNK_SIZE;
+        long end = System.nanoTime() + seconds * 1000000000L;
+        AtomicLong commits = new AtomicLong(0);
+        AtomicLong reads = new AtomicLong(0);
+        Histogram commit_hist = new Histogram();
+        Histogram read_hist = new Histogram();
+        Proxy.stub.updateRanges("data", 0, new FileDelta(size, new long[0], new byte[0][]));
+
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int w = 1; w <= 2; w++) {
+            byte[] buf = new byte[piece];
+            Arrays.fill(buf, (byte) w);
+            threads.add(new Thread(() -> {
+                try {
+                    while (System.nanoTime() < end) {
+                        long start = System.nanoTime();
+                        RemoteUpload up = Proxy.stub.beginUpload("data", 0);
+                        for (int pos = 0; pos < size; pos += piece) {
+                            up.write(pos, Arrays.copyOf(buf, Math.min(piece, size - pos)));
+                        }
+                        if (up.commit(size) < 0) {
+                            throw new IOException("commit failed");
+                        }
+                        commit_hist.record(System.nanoTime() - start);
+                        commits.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (int r = 0; r < 2; r++) {
+            threads.add(new Thread(() -> {
+                try {
+                    while (System.nanoTime() < end) {
+                        long start = System.nanoTime();
+                        FileStream fs = Proxy.stub.openStream("data", 1);
+                        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+                        out.write(fs.data);
+                        while (out.size() < fs.length) {
+                            out.write(fs.reader.read(piece));
+                        }
+                        Proxy.closeStream(fs);
+                        read_hist.record(System.nanoTime() - start);
+                        reads.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        System.out.printf("%d MB file, %d s: %d commits, %d reads%n",
+            size_mb, seconds, commits.get(), reads.get());
+        System.out.println("commit " + commit_hist.summary());
+        System.out.println("read   " + read_hist.summary());
+    }
+
+    /*
+     * Function: locks
+     * Touches every one of a growing number of distinct paths, then takes
+     * and drops read locks on random ones from several threads. Compares
+     * a lock per path in a map, as the server used to keep them, against
+     * the striped LockTable it keeps now, by locks per second and by heap
+     * still held once every path has been touched.
+     * 
+     * @param max_paths - largest number of distinct paths to try
+     * @param threads - threads taking locks
+     */
+    public static void locks (int max_paths, int threads) throws Exception {
+        int ops = 2000000;
+        for (int n = 1000; n <= max_paths; n *= 10) {
+            int num_paths = n;
+            String[] paths = new String[n];
+            for (int i = 0; i < n; i++) {
+                paths[i] = "/srv/root/dir" + (i % 100) + "/file" + i;
+            }
+            for (boolean striped : new boolean[] {false, true}) {
+                long before = usedHeap();
+                ConcurrentHashMap<String, ReentrantReadWriteLock> map =
+                    new ConcurrentHashMap<String, ReentrantReadWriteLock>();
+                LockTable table = new LockTable(Server.lock_stripes);
+                Function<String, ReentrantReadWriteLock> get = p -> {
+                    if (striped) {
+                        return table.get(p);
+                    }
+                    map.putIfAbsent(p, new ReentrantReadWriteLock());
+                    return map.get(p);
+                };
+                for (String p : paths) {
+                    get.apply(p);
+                }
+
+                Thread[] workers = new Thread[threads];
+                long start = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    Random rand = new Random(t);
+                    workers[t] = new Thread(() -> {
+                        for (int k = 0; k < ops / threads; k++) {
+                            ReentrantReadWriteLock lock = get.apply(paths[rand.nextInt(num_paths)]);
+                            lock.readLock().lock();
+                            lock.readLock().unlock();
+                        }
+                    });
+                    workers[t].start();
+                }
+                for (Thread w : workers) {
+                    w.join();
+                }
+                double secs = (System.nanoTime() - start) / 1e9;
+                long held = usedHeap() - before;
+                System.out.printf("%8d paths, %-7s: %.2f M locks/s, lock table heap %.1f MB%n",
+                    n, striped ? "striped" : "map", ops / secs / 1e6, held / 1e6);
+                Reference.reachabilityFence(map);
+                Reference.reachabilityFence(table);
+            }
+        }
+    }
+
+    /*
+     * Function: dedup
+     * Reads a file through the proxy, then reads a copy of it with a few
+     * bytes inserted in the middle and one overwritten near the end, then
+     * writes a third edited copy as a new file. Counts the bytes that
+     * cross the wire for the second read and the write, with dedup off
+     * and on.
+     * 
+     * @param size_mb - size of the files
+     */
+    public static void dedup (int size_mb) throws Exception {
+        File root = startServer();
+        Metrics.enable("bench", 0);
+        int size = size_mb * 1000000;
+        makeFile(root, "a", size);
+        byte[] a = Files.readAllBytes(new File(root, "a").toPath());
+        byte[] b = new byte[size + 100];
+        System.arraycopy(a, 0, b, 0, size / 2);
+        System.arraycopy(a, size / 2, b, size / 2 + 100, size - size / 2);
+        b[size - 1000] ^= 1;
+        Files.write(new File(root, "b").toPath(), b);
+        byte[] c = Arrays.copyOf(b, b.length);
+        c[size / 4] ^= 1;
+
+        for (boolean on : new boolean[] {false, true}) {
+            FileHandling client = startProxy(Integer.MAX_VALUE,
+                new String[] {"dedup=" + on, "block_threshold=" + Long.MAX_VALUE}).newclient();
+            client.close(client.open("a", FileHandling.OpenOption.READ));
+            while (!Proxy.filling.isEmpty()) {
+                Thread.sleep(1);
+            }
+
+            long fetched = Metrics.get("proxy.bytes_fetched");
+            long start = System.nanoTime();
+            client.close(client.open("b", FileHandling.OpenOption.READ));
+            while (!Proxy.filling.isEmpty()) {
+                Thread.sleep(1);
+            }
+            double read_ms = (System.nanoTime() - start) / 1e6;
+            fetched = Metrics.get("proxy.bytes_fetched") - fetched;
+
+            long uploaded = Metrics.get("proxy.bytes_uploaded");
+            start = System.nanoTime();
+            int fd = client.open("c" + on, FileHandling.OpenOption.CREATE_NEW);
+            if (fd < 0 || client.write(fd, c) != c.length || client.close(fd) != 0) {
+                throw new IOException("write of c failed");
+            }
+            double write_ms = (System.nanoTime() - start) / 1e6;
+            uploaded = Metrics.get("proxy.bytes_uploaded") - uploaded;
+
+            System.out.printf("dedup %-5b: read b %.2f MB fetched in %.1f ms, write c %.2f MB sent in %.1f ms%n",
+                on, fetched / 1e6, read_ms, uploaded / 1e6, write_ms);
+            client.clientdone();
+        }
+    }
+
+    /*
+     * Function: compress
+     * Reads a log-like file and a random one through the proxy and writes
+     * each back as a new file, with wire compression off and on. Counts
+     * the bytes that cross the wire and the CPU spent packing and
+     * unpacking them. Both sides run in this process, so the pack and
+     * unpack times cover the server's work too.
+     * 
+     * @param size_mb - size of the files
+     */
+    public static void compress (int size_mb) throws Exception {
+        File root = startServer();
+        Metrics.enable("bench", 0);
+        int size = size_mb * 1000000;
+        Random rand = new Random(440);
+        String[] levels = {"INFO", "INFO", "INFO", "WARN", "DEBUG"};
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; log.length() < size; i++) {
+            log.append(String.format("2026-10-17 12:%02d:%02d.%03d %-5s [worker-%d] request %d for /data/f%d took %d ms%n",
+                i / 60000 % 60, i / 1000 % 60, i % 1000, levels[rand.nextInt(levels.length)],
+                rand.nextInt(8), i, rand.nextInt(5000), rand.nextInt(200)));
+        }
+        byte[] text = Arrays.copyOf(log.toString().getBytes(), size);
+        Files.write(new File(root, "text").toPath(), text);
+        makeFile(root, "random", size);
+
+        for (boolean on : new boolean[] {false, true}) {
+            FileHandling client = startProxy(Integer.MAX_VALUE,
+                new String[] {"compress=" + on, "block_threshold=" + Long.MAX_VALUE}).newclient();
+            for (String name : new String[] {"text", "random"}) {
+                long raw = Metrics.get("proxy.bytes_fetched");
+                long sent = Metrics.get("wire.sent_bytes");
+                long cpu = Metrics.get("wire.pack_cpu_ns") + Metrics.get("wire.unpack_cpu_ns");
+                long start = System.nanoTime();
+                client.close(client.open(name, FileHandling.OpenOption.READ));
+                while (!Proxy.filling.isEmpty()) {
+                    Thread.sleep(1);
+                }
+                double read_ms = (System.nanoTime() - start) / 1e6;
+                raw = Metrics.get("proxy.bytes_fetched") - raw;
+                sent = on ? Metrics.get("wire.sent_bytes") - sent : raw;
+                double read_cpu = (Metrics.get("wire.pack_cpu_ns") + Metrics.get("wire.unpack_cpu_ns") - cpu) / 1e6;
+
+                byte[] data = Files.readAllBytes(new File(root, name).toPath());
+                long up_raw = Metrics.get("proxy.bytes_uploaded");
+                long up_sent = Metrics.get("wire.sent_bytes");
+                cpu = Metrics.get("wire.pack_cpu_ns") + Metrics.get("wire.unpack_cpu_ns");
+                start = System.nanoTime();
+                int fd = client.open(name + "-" + on, FileHandling.OpenOption.CREATE_NEW);
+                if (fd < 0 || client.write(fd, data) != data.length || client.close(fd) != 0) {
+                    throw new IOException("write of " + name + " failed");
+                }
+                double write_ms = (System.nanoTime() - start) / 1e6;
+                up_raw = Metrics.get("proxy.bytes_uploaded") - up_raw;
+                up_sent = on ? Metrics.get("wire.sent_bytes") - up_sent : up_raw;
+                double write_cpu = (Metrics.get("wire.pack_cpu_ns") + Metrics.get("wire.unpack_cpu_ns") - cpu) / 1e6;
+                if (!Arrays.equals(data, Files.readAllBytes(new File(root, name + "-" + on).toPath()))) {
+                    throw new IOException(name + " came back different");
+                }
+
+                System.out.printf("compress %-5b %-6s: read %.2f MB sent (%.2fx) in %.1f ms, %.1f ms cpu; "
+                    + "write %.2f MB sent (%.2fx) in %.1f ms, %.1f ms cpu%n",
+                    on, name, sent / 1e6, raw / (double) sent, read_ms, read_cpu,
+                    up_sent / 1e6, up_raw / (double) up_sent, write_ms, write_cpu);
+            }
+            client.clientdone();
+        }
+    }
+
+    /*
+     * Function: usedHeap
+     * @return bytes of heap in use after a full collection
+     */
+    private static long usedHeap () {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /*
+     * Function: sparseFile
+     * Creates a file of the given length without writing its bytes
+     */
+    private static File sparseFile (String path, long size) throws IOException {
+        File file = new File(path);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+        return file;
+    }
+
+    public static void main (String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: java Bench <benchmark> [args...]");
+            System.exit(1);
+        }
+        switch (args[0]) {
+            case "transfer":
+                transfer(args.length > 1 ? Integer.parseInt(args[1]) : 100,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 16);
+                break;
+            case "invalidate":
+                invalidate(args.length > 1 ? Integer.parseInt(args[1]) : 8,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 5);
+                break;
+            case "meta":
+                meta(args.length > 1 ? Integer.parseInt(args[1]) : 100,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 5);
+                break;
+            case "churn":
+                churn(args.length > 1 ? Integer.parseInt(args[1]) : 100000,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 20000);
+                break;
+            case "replay":
+                replay(args.length > 1 ? args[1] : "synthetic",
+                    args.length > 2 ? Integer.parseInt(args[2]) : 10);
+                break;
+            case "ttfb":
+                ttfb(args.length > 1 ? Integer.parseInt(args[1]) : 100);
+                break;
+            case "cache":
+                cache(args.length > 1 ? Integer.parseInt(args[1]) : 100000,
+                    args.length > 2 ? args[2] : "lru");
+                break;
+            case "ops":
+                ops(args.length > 1 ? Integer.parseInt(args[1]) : 8,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 5,
+                    Arrays.copyOfRange(args, Math.min(3, args.length), args.length));
+                break;
+            case "randread":
+                randread(args.length > 1 ? Integer.parseInt(args[1]) : 100,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 100000);
+                break;
+            case "commit":
+                commit(args.length > 1 ? Integer.parseInt(args[1]) : 10,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 10);
+                break;
+            case "locks":
+                locks(args.length > 1 ? Integer.parseInt(args[1]) : 1000000,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 4);
+                break;
+            case "dedup":
+                dedup(args.length > 1 ? Integer.parseInt(args[1]) : 20);
+                break;
+            case "compress":
+                compress(args.length > 1 ? Integer.parseInt(args[1]) : 20);
+                break;
+            case "writeback":
+                writeback(args.length > 1 ? Integer.parseInt(args[1]) : 16384,
+                    Arrays.copyOfRange(args, Math.min(2, args.length), args.length));
+                break;
+            default:
+                System.err.println("unknown benchmark: " + args[0]);
+                System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * File: BlockFile.java
+ * Description: Read-only view of a version cached in blocks
+ * Author: Joseph Jia (josephji)
+ *
+ * This file implements a read fd on a version that is too big to cache
+ * whole. The version is split into fixed-size blocks, each cached as its
+ * own entry keyed "<path>-<ver>-b<index>", so blocks are fetched and
+ * evicted independently and only the hot parts of a big file stay
+ * resident. A block is pinned only while it is being read. Reading one
+ * block past its middle fetches the next one in the background.
+ *
+ * Blocks are read through a server stream opened with the fd, which
+ * holds the version open on the server until the fd is closed. A close
+ * that replaces the version meanwhile doesn't affect the fd: blocks it
+ * hasn't cached yet are still read from the version it opened.
+ */
+
+// Imported Libraries
+import java.io.*;
+
+public class BlockFile {
+    public static int BLOCK_SIZE = 1 << 20;
+
+    private String path;
+    private String version_path;
+    private long length;
+    private long pos;
+    private RemoteStream reader; // server stream holding the version open
+
+    /*
+     * Function: BlockFile Constructor
+     *
+     * @param p - server pathname of the file
+     * @param vp - cache pathname of the version, e.g. "dir/a-3"
+     * @param l - length of the version
+     * @param r - server stream opened on the version
+     */
+    public BlockFile (String p, String vp, long l, RemoteStream r) {
+        path = p;
+        version_path = vp;
+        length = l;
+        pos = 0;
+        reader = r;
+    }
+
+    public long length () {
+        return length;
+    }
+
+    public long getFilePointer () {
+        return pos;
+    }
+
+    public void seek (long p) {
+        pos = p;
+    }
+
+    /*
+     * Function: blockPath
+     * @param idx - index of the block
+     * @return cache pathname of the block
+     */
+    public String blockPath (long idx) {
+        return version_path + "-b" + idx;
+    }
+
+    /*
+     * Function: read
+     * Reads at the file pointer, fetching the blocks it covers
+     *
+     * @param buf - buffer to read into
+     * @return number of bytes read, 0 at the end of the file
+     */
+    public int read (byte[] buf) throws IOException {
+        int total = 0;
+        while (total < buf.length && pos < length) {
+            long idx = pos / BLOCK_SIZE;
+            long start = idx * BLOCK_SIZE;
+            int off = (int) (pos - start);
+            int len = (int) Math.min(BLOCK_SIZE, length - start);
+
+            File block = fetch(idx);
+            try (RandomAccessFile raf = new RandomAccessFile(block, "r")) {
+                raf.seek(off);
+                int n = raf.read(buf, total, Math.min(buf.length - total, len - off));
+                if (n <= 0) {
+                    throw new IOException("block " + blockPath(idx) + " is short");
+                }
+                total += n;
+                pos += n;
+            } finally {
+                Proxy.cache.release(blockPath(idx));
+            }
+
+            // read ahead once a sequential reader is halfway through
+            if (pos - start > len / 2 && start + len < length) {
+                readAhead(idx + 1);
+            }
+        }
+        return total;
+    }
+
+    /*
+     * Function: fetch
+     * Gets a block from the cache, fetching it on a miss
+     *
+     * @param idx - index of the block
+     * @return the cached block, with 1 client added for the caller
+     */
+    private File fetch (long idx) throws IOException {
+        long start = idx * BLOCK_SIZE;
+        int len = (int) Math.min(BLOCK_SIZE, length - start);
+        return Proxy.fetchBlock(path, blockPath(idx), reader, start, len);
+    }
+
+    /*
+     * Function: close
+     * Lets the server close the version, in the background
+     */
+    public void close () {
+        RemoteStream r = reader;
+        Proxy.fetcher.submit(() -> {
+            r.close();
+            return null;
+        });
+    }
+
+    /*
+     * Function: readAhead
+     * Fetches a block in the background if it isn't cached or on its way
+     *
+     * @param idx - index of the block
+     */
+    private void readAhead (long idx) {
+        String block_path = blockPath(idx);
+        if (Proxy.cache.containsKey(block_path) || Proxy.in_flight.containsKey(block_path)) {
+            return;
+        }
+        Proxy.fetcher.submit(() -> {
+            try {
+                fetch(idx);
+                Proxy.cache.release(block_path);
+            } catch (IOException e) {
+                // the reader will fetch it again and see the error
+            }
+        });
+    }
+}
@@ -2,159 +2,548 @@
  * File: Cache.java
  * Description: Implements the proxy cache
  * Author: Joseph Jia (josephji)
- * 
- * This file implements the proxy cache as a LinkedHashMap.
- * It uses an overridden version of removeEldestEntry to 
- * implement LRU eviction.
+ *
+ * This file implements the proxy cache as a ConcurrentHashMap of entries.
+ * Each entry keeps its own client count, which is changed with
+ * compare-and-set, so cache hits and pins take no lock. The order of
+ * eviction is left to an EvictionPolicy, CLOCK by default. The policy
+ * only ever hands out entries with no clients: an entry becomes a
+ * candidate when its last client leaves, so eviction never walks pinned
+ * entries. A version index from base path to VersionData
+ * keeps stale-version cleanup proportional to the versions of one path.
+ * Versions added and removed can be logged to a CacheIndex, so a
+ * restarted proxy can pick them up again.
  */
 
 // Imported Libraries
 import java.util.*;
 import java.io.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class Cache extends LinkedHashMap<String, File> {
+public class Cache {
     // Additional class variables
-    public int max_size;
-    public int curr_size;
-    public Object lock = new Object();
-    public ConcurrentHashMap<String, Integer> clients;
+    public long max_size;
+    public AtomicLong curr_size;
+    private ConcurrentHashMap<String, Entry> entries;
+    private EvictionPolicy policy;
+    private ConcurrentHashMap<String, VersionData> versions;
+    private AtomicBoolean evicting;
+    private CacheIndex index;
 
-    /* 
+    /*
+     * Class: Entry
+     * One cached file. clients is -1 once the entry has been removed,
+     * so a removed entry can never be pinned again. referenced and queued
+     * belong to the CLOCK policy.
+     */
+    static class Entry {
+        public String path;
+        public File file;
+        public AtomicLong size;
+        public AtomicInteger clients;
+        public volatile boolean referenced;
+        public AtomicBoolean queued; // on the clock
+
+        public Entry (String p, File f, long s) {
+            path = p;
+            file = f;
+            size = new AtomicLong(s);
+            clients = new AtomicInteger(0);
+            referenced = true;
+            queued = new AtomicBoolean(false);
+        }
+
+        /*
+         * Function: pin
+         * @return true if a client was added, false if the entry was removed
+         */
+        public boolean pin () {
+            while (true) {
+                int c = clients.get();
+                if (c < 0) {
+                    return false;
+                }
+                if (clients.compareAndSet(c, c + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /*
+         * Function: unpin
+         * Removes a client, never going below 0
+         * @return true if that was the last client
+         */
+        public boolean unpin () {
+            while (true) {
+                int c = clients.get();
+                if (c <= 0) {
+                    return false;
+                }
+                if (clients.compareAndSet(c, c - 1)) {
+                    return c == 1;
+                }
+            }
+        }
+
+        /*
+         * Function: tryRemove
+         * @return true if the entry had no clients and is now removed
+         */
+        public boolean tryRemove () {
+            return clients.compareAndSet(0, -1);
+        }
+    }
+
+    /*
      * Function: Cache Constructor
-     * Creates a cache as a LinkedHashMap
-     * 
+     * Creates an empty cache
+     *
      * @param capacity - max total file size allowed in the cache
      */
-    public Cache (int capacity) {
-        super(16, 0.75f, true);
-        clients = new ConcurrentHashMap<String, Integer>();
+    public Cache (long capacity) {
+        this(capacity, null);
+    }
+
+    /*
+     * Function: Cache Constructor
+     * Creates an empty cache that logs its versions to an index
+     *
+     * @param capacity - max total file size allowed in the cache
+     * @param idx - index to log to, null for none
+     */
+    public Cache (long capacity, CacheIndex idx) {
+        this(capacity, idx, new ClockPolicy());
+    }
+
+    /*
+     * Function: Cache Constructor
+     * Creates an empty cache with the given eviction policy
+     *
+     * @param capacity - max total file size allowed in the cache
+     * @param idx - index to log to, null for none
+     * @param p - policy that picks what to evict
+     */
+    public Cache (long capacity, CacheIndex idx, EvictionPolicy p) {
+        index = idx;
+        policy = p;
+        entries = new ConcurrentHashMap<String, Entry>();
+        versions = new ConcurrentHashMap<String, VersionData>();
+        evicting = new AtomicBoolean(false);
         max_size = capacity;
-        curr_size = 0;
+        curr_size = new AtomicLong(0);
+    }
+
+    /*
+     * Function: basePath
+     * Strips the version and write or block suffixes off a cache path,
+     * e.g. "dir/a-3", "dir/a-3-w7" and "dir/a-3-b2" all give "dir/a"
+     *
+     * @param path - cache pathname
+     * @return pathname without suffixes
+     */
+    public static String basePath (String path) {
+        path = versionPath(path);
+        int dash = path.lastIndexOf("-");
+        return dash < 0 ? path : path.substring(0, dash);
+    }
+
+    /*
+     * Function: versionPath
+     * Strips the write or block suffix off a cache path,
+     * e.g. "dir/a-3-w7" and "dir/a-3-b2" both give "dir/a-3"
+     *
+     * @param path - cache pathname
+     * @return pathname of the whole version
+     */
+    public static String versionPath (String path) {
+        if (isWrite(path) || isBlock(path)) {
+            return path.substring(0, path.lastIndexOf("-"));
+        }
+        return path;
+    }
+
+    /*
+     * Function: version
+     * @param path - cache pathname of a version, write copy or block,
+     *               e.g. "dir/a-3" or "dir/a-3-b2"
+     * @return the version number, -1 if the path has none
+     */
+    public static int version (String path) {
+        path = versionPath(path);
+        try {
+            return Integer.parseInt(path.substring(path.lastIndexOf("-") + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /*
+     * Function: isBlock
+     * @param path - cache pathname
+     * @return true if the path is one block of a version, e.g. "dir/a-3-b2"
+     */
+    public static boolean isBlock (String path) {
+        String suffix = path.substring(path.lastIndexOf("-") + 1);
+        return suffix.length() > 1 && suffix.charAt(0) == 'b'
+            && suffix.chars().skip(1).allMatch(Character::isDigit);
+    }
+
+    /*
+     * Function: isWrite
+     * @param path - cache pathname
+     * @return true if the path is a write copy, e.g. "dir/a-3-w7"
+     */
+    public static boolean isWrite (String path) {
+        return path.substring(path.lastIndexOf("-") + 1).startsWith("w");
+    }
+
+    public boolean containsKey (String path) {
+        return entries.containsKey(path);
+    }
+
+    /*
+     * Function: get
+     * Looks up a file and marks it as recently used
+     *
+     * @param path - pathname to look up
+     * @return File object of the pathname, null if it isn't cached
+     */
+    public File get (String path) {
+        Entry ent = entries.get(path);
+        if (ent == null) {
+            return null;
+        }
+        policy.hit(ent);
+        return ent.file;
+    }
+
+    /*
+     * Function: acquire
+     * Looks up a file and adds a client to it in one step,
+     * so it can't be evicted between the lookup and the pin
+     *
+     * @param path - pathname to look up
+     * @return File object of the pathname, null if it isn't cached
+     */
+    public File acquire (String path) {
+        Entry ent = entries.get(path);
+        if (ent == null || !ent.pin()) {
+            return null;
+        }
+        policy.hit(ent);
+        Metrics.count("cache.hit");
+        return ent.file;
     }
 
     /*
      * Function: addClient
      * Adds 1 client to the client count of a given path
-     *  
+     *
      * @param path - pathname to add client to
+     * @return true on success, false if the path isn't cached
+     */
+    public boolean addClient (String path) {
+        Entry ent = entries.get(path);
+        if (ent == null || !ent.pin()) {
+            return false;
+        }
+        policy.hit(ent);
+        return true;
+    }
+
+    /*
+     * Function: release
+     * Removes 1 client without checking for stale versions,
+     * for entries that are pinned only for the length of one read
+     *
+     * @param path - pathname to remove client from
+     */
+    public void release (String path) {
+        Entry ent = entries.get(path);
+        if (ent != null) {
+            unpin(ent);
+        }
+    }
+
+    /*
+     * Function: unpin
+     * Removes a client from an entry, handing it to the policy
+     * once it has none left
+     *
+     * @param ent - entry to remove a client from
+     */
+    private void unpin (Entry ent) {
+        if (ent.unpin()) {
+            policy.idle(ent);
+        }
+    }
+
+    /*
+     * Function: addSize
+     * Adds to the size of an entry that grew in place,
+     * evicting other files if needed
+     *
+     * @param path - pathname of the entry
+     * @param bytes - number of bytes the entry grew by
      */
-    public void addClient (String path) {
-        synchronized (lock) {
-            int curr_clients = clients.get(path) + 1;
-            clients.replace(path, curr_clients);
+    public void addSize (String path, long bytes) {
+        Entry ent = entries.get(path);
+        if (bytes == 0 || ent == null) {
+            return;
         }
+        ent.size.addAndGet(bytes);
+        curr_size.addAndGet(bytes);
+        checkEvict();
     }
 
     /*
      * Function: removeClient
      * Removes 1 client to the client count of a given path
      * Deletes file if it was a write file
-     *  
+     *
      * @param path - pathname to remove client from
      * @param isWrite - true if pathname was a write file, false otherwise
      * @param fd - file descriptor used if isWrite is true
      */
     public void removeClient (String path, boolean isWrite, int fd) {
-        synchronized (lock) {
-            if (isWrite) {
-                path = path + "-w" + fd;
-            }
-            int old_clients = clients.get(path);
-            int curr_clients;
-            if (old_clients == 0) {
-                curr_clients = 0;
-            }
-            else {
-                curr_clients = clients.get(path) - 1;
-            }
-            clients.replace(path, curr_clients);
-            if (isWrite) {
-                super.remove(path);
-                File f = new File (path);
-                curr_size -= f.length();
-                f.delete();
-                return;
+        if (isWrite) {
+            Entry ent = entries.get(path + "-w" + fd);
+            if (ent != null) {
+                ent.unpin();
+                if (ent.tryRemove()) {
+                    drop(ent);
+                }
             }
-            checkStaleVersions(path);
+            return;
+        }
+        Entry ent = entries.get(path);
+        if (ent != null) {
+            unpin(ent);
+        }
+        checkStaleVersions(path);
+    }
+
+    /*
+     * Function: complete
+     * Logs a file put as incomplete once all of its contents have arrived
+     *
+     * @param path - pathname of the entry
+     */
+    public void complete (String path) {
+        Entry ent = entries.get(path);
+        if (index != null && ent != null && ent.clients.get() >= 0) {
+            index.logPut(path, ent.size.get());
+            checkCompact();
+        }
+    }
+
+    /*
+     * Function: remove
+     * Removes an entry even if it has clients, for a file whose contents
+     * turned out to be bad. Clients that already have it open keep their
+     * handle to the deleted file.
+     *
+     * @param path - pathname of the entry
+     */
+    public void remove (String path) {
+        Entry ent = entries.get(path);
+        if (ent != null && ent.clients.getAndSet(-1) >= 0) {
+            drop(ent);
         }
     }
 
     /*
      * Function: checkStaleVersions
      * Checks the cache for any stale versions of a file path and removes them
-     * 
+     * A version is stale once a newer version of the same path is cached
+     *
      * @param p - pathname to check stale versions for
      */
     public void checkStaleVersions (String p) {
-        String prefix = p.substring(0, p.lastIndexOf("-"));
-        int ver = Integer.parseInt(p.substring(p.lastIndexOf("-") + 1));
-        Iterator<Map.Entry<String, File>> it = this.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, File> ent = it.next();
-            if (ent.getKey().startsWith(prefix)) {
-                String path_end = ent.getKey().substring(p.lastIndexOf("-") + 1);
-                if (!path_end.contains("w")) {
-                    int ent_ver = Integer.parseInt(path_end);
-                    if (ver != ent_ver && clients.get(ent.getKey()) == 0) {
-                        File f = ent.getValue();
-                        curr_size -= f.length();
-                        it.remove(); 
-                        f.delete();
-                    }
-                }
+        VersionData data = versions.get(basePath(p));
+        if (data == null) {
+            return;
+        }
+        int newest = data.newest(p);
+        for (String path : data.paths) {
+            if (isWrite(path) || version(path) >= newest) {
+                continue;
+            }
+            Entry ent = entries.get(path);
+            if (ent != null && ent.tryRemove()) {
+                drop(ent);
+                Metrics.count("cache.stale");
             }
         }
     }
 
     /*
      * Function: checkEvict
-     * Checks if cache eviction is needed and evicts in LRU order
+     * Checks if cache eviction is needed and evicts in the policy's order
+     * Only one thread evicts at a time. Others skip it,
+     * since the running one keeps going until the cache fits.
      */
     public void checkEvict () {
-        Iterator<Map.Entry<String, File>> it = this.entrySet().iterator();
-        while (it.hasNext() && curr_size > max_size) {
-            Map.Entry<String, File> ent = it.next();
-            if (clients.get(ent.getKey()) == 0) {
-                File f = ent.getValue();
-                curr_size -= f.length();
-                it.remove(); 
-                f.delete();
+        if (curr_size.get() <= max_size || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int budget = entries.size() + 1;
+            while (curr_size.get() > max_size && budget-- > 0) {
+                Entry ent = policy.victim();
+                if (ent == null) {
+                    break;
+                }
+                // an entry pinned since going idle goes back when it's idle again
+                if (ent.tryRemove()) {
+                    drop(ent);
+                    Metrics.count("cache.evict");
+                    Metrics.add("cache.evict_bytes", ent.size.get());
+                }
             }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /*
+     * Function: drop
+     * Removes an entry that has already been marked removed
+     *
+     * @param ent - entry to drop
+     */
+    private void drop (Entry ent) {
+        if (entries.remove(ent.path, ent)) {
+            unindex(ent.path);
         }
+        policy.removed(ent);
+        curr_size.addAndGet(-ent.size.get());
+        ent.file.delete();
+        MappedFile.forget(ent.path);
+        if (index != null && !isWrite(ent.path)) {
+            index.logDrop(ent.path);
+            checkCompact();
+        }
+    }
+
+    /*
+     * Function: unindex
+     * Removes a dropped path from the version index
+     *
+     * @param path - cache pathname that was dropped
+     */
+    private void unindex (String path) {
+        versions.computeIfPresent(basePath(path), (k, data) -> {
+            // a put of the same path may have replaced the dropped entry
+            if (!entries.containsKey(path)) {
+                data.paths.remove(path);
+            }
+            return data.paths.isEmpty() ? null : data;
+        });
     }
 
     /*
-     * Function: removeEldestEntry
-     * Note: I just override the function so that this is never triggered
-     * 
-     * @param eldest - eldest entry in the cache
+     * Function: checkCompact
+     * Compacts the index once most of its records are dead,
+     * writing the live versions in the order the policy would evict them
      */
-    @Override
-    protected boolean removeEldestEntry(Map.Entry<String, File> eldest) {
-        return false;
+    private void checkCompact () {
+        if (!index.needsCompact(entries.size())) {
+            return;
+        }
+        // idle entries in eviction order, then the ones in use
+        LinkedHashMap<String, Long> live = new LinkedHashMap<String, Long>();
+        for (Entry ent : policy.order()) {
+            if (ent.clients.get() >= 0 && !isWrite(ent.path) && entries.get(ent.path) == ent) {
+                live.put(ent.path, ent.size.get());
+            }
+        }
+        for (Entry ent : entries.values()) {
+            if (ent.clients.get() >= 0 && !isWrite(ent.path)) {
+                live.putIfAbsent(ent.path, ent.size.get());
+            }
+        }
+        index.compact(live);
     }
 
     /*
      * Function: put
      * Puts the file into the cache and evicts other files in the cache if needed
      * Prioritizes evicting stale older versions of the file being inserted
-     * 
+     *
      * @param path - pathname for the file
      * @param file - File object of the pathname
-     * @return pervious value associated with the path, if it exists
-     */
-    @Override
-    public File put(String path, File file) {
-        synchronized (lock) {
-            clients.putIfAbsent(path, 0);
-            int file_size = (int) file.length();
-            curr_size += file_size; // Update current cache size
-            if (!path.substring(path.lastIndexOf("-") + 1).contains("w")) {
-                checkStaleVersions(path);
+     * @return previous value associated with the path, if it exists
+     */
+    public File put (String path, File file) {
+        return put(path, file, false);
+    }
+
+    /*
+     * Function: put
+     * Same as put, optionally adding a client before anything can evict it
+     *
+     * @param path - pathname for the file
+     * @param file - File object of the pathname
+     * @param pin - true to add 1 client to the entry
+     * @return previous value associated with the path, if it exists
+     */
+    public File put (String path, File file, boolean pin) {
+        return put(path, file, pin, true);
+    }
+
+    /*
+     * Function: put
+     * Same as put, for a file whose contents may still be arriving.
+     * An incomplete file isn't logged to the index until complete is called,
+     * so a restart never picks up a partly fetched version.
+     *
+     * @param path - pathname for the file
+     * @param file - File object of the pathname, already at its full length
+     * @param pin - true to add 1 client to the entry
+     * @param complete - false if the contents are still arriving
+     * @return previous value associated with the path, if it exists
+     */
+    public File put (String path, File file, boolean pin, boolean complete) {
+        Entry ent = new Entry(path, file, file.length());
+        if (pin) {
+            ent.clients.set(1);
+        }
+        Entry old = entries.put(path, ent);
+        curr_size.addAndGet(ent.size.get());
+        if (old != null) {
+            // same file was replaced in place, so carry over its clients
+            int c = old.clients.getAndSet(-1);
+            if (c > 0) {
+                ent.clients.addAndGet(c);
+            }
+            curr_size.addAndGet(-old.size.get());
+            policy.removed(old);
+        }
+        policy.added(ent);
+        versions.compute(basePath(path), (k, data) -> {
+            if (data == null) {
+                data = new VersionData();
             }
-            checkEvict();
-            return super.put(path, file);
+            data.paths.add(path);
+            return data;
+        });
+        if (ent.clients.get() == 0) {
+            policy.idle(ent);
+        }
+
+        if (!isWrite(path)) {
+            if (index != null && complete) {
+                index.logPut(path, ent.size.get());
+                checkCompact();
+            }
+            checkStaleVersions(path);
         }
+        checkEvict();
+        return old == null ? null : old.file;
     }
 }
@@ -0,0 +1,180 @@
+/**
+ * File: CacheIndex.java
+ * Description: Keeps the proxy cache's entries on disk
+ * Author: Joseph Jia (josephji)
+ *
+ * This file implements an append-only log of the versions held by the
+ * proxy cache, so a restarted proxy can reuse the files still in its
+ * cache directory instead of fetching everything again. Every put and
+ * drop appends one record. Once the log holds many more records than
+ * there are entries, it is compacted: the live entries are written to a
+ * new file in eviction order, which is then renamed over the old one.
+ * The index is only a hint, so an I/O error turns it off instead of
+ * failing the cache.
+ */
+
+// Imported Libraries
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class CacheIndex {
+    // Additional class variables
+    public static final String NAME = ".cache.index";
+    private static final byte PUT = 1;
+    private static final byte DROP = 2;
+    private static final int MIN_COMPACT = 256; // records before compaction is considered
+
+    private File file;
+    private DataOutputStream log;
+    private int records;
+
+    /*
+     * Function: CacheIndex Constructor
+     *
+     * @param cache_dir - cache directory the index lives in
+     */
+    public CacheIndex (String cache_dir) {
+        file = new File(cache_dir, NAME);
+        records = 0;
+    }
+
+    /*
+     * Function: load
+     * Reads the entries left by the last run and starts a new, empty log.
+     * A record cut off by a crash ends the log.
+     *
+     * @return cache path to size of each entry, oldest first
+     */
+    public synchronized LinkedHashMap<String, Long> load () {
+        LinkedHashMap<String, Long> saved = new LinkedHashMap<String, Long>();
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                     new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    byte op = in.readByte();
+                    String path = in.readUTF();
+                    long size = in.readLong();
+                    saved.remove(path);
+                    if (op == PUT) {
+                        saved.put(path, size);
+                    }
+                }
+            } catch (EOFException e) {
+                // end of the log
+            } catch (IOException e) {
+                System.err.println(e.toString());
+            }
+        }
+        rewrite(new LinkedHashMap<String, Long>());
+        return saved;
+    }
+
+    /*
+     * Function: logPut
+     * Records that a version was added to the cache
+     *
+     * @param path - cache pathname of the version
+     * @param size - size of the version in bytes
+     */
+    public synchronized void logPut (String path, long size) {
+        append(PUT, path, size);
+    }
+
+    /*
+     * Function: logDrop
+     * Records that a version was removed from the cache
+     *
+     * @param path - cache pathname of the version
+     */
+    public synchronized void logDrop (String path) {
+        append(DROP, path, 0);
+    }
+
+    /*
+     * Function: needsCompact
+     * @param entries - number of entries in the cache
+     * @return true if most of the log is dead records
+     */
+    public synchronized boolean needsCompact (int entries) {
+        return log != null && records > MIN_COMPACT && records > 2 * entries;
+    }
+
+    /*
+     * Function: compact
+     * Replaces the log with one PUT record per live entry
+     *
+     * @param live - cache path to size of each entry, in eviction order
+     */
+    public synchronized void compact (LinkedHashMap<String, Long> live) {
+        if (log != null) {
+            rewrite(live);
+        }
+    }
+
+    /*
+     * Function: append
+     * Writes one record, flushed so it survives the proxy exiting
+     */
+    private void append (byte op, String path, long size) {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.writeByte(op);
+            log.writeUTF(path);
+            log.writeLong(size);
+            log.flush();
+            records++;
+        } catch (IOException e) {
+            disable(e);
+        }
+    }
+
+    /*
+     * Function: rewrite
+     * Writes the given entries to a temporary file and renames it over
+     * the log, so a crash leaves either the old log or the new one
+     *
+     * @param live - cache path to size of each entry, in eviction order
+     */
+    private void rewrite (LinkedHashMap<String, Long> live) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            if (log != null) {
+                log.close();
+            }
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+            for (Map.Entry<String, Long> ent : live.entrySet()) {
+                out.writeByte(PUT);
+                out.writeUTF(ent.getKey());
+                out.writeLong(ent.getValue());
+            }
+            out.close();
+            Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            records = live.size();
+        } catch (IOException e) {
+            disable(e);
+        }
+    }
+
+    /*
+     * Function: disable
+     * Stops logging and removes the index, so the next run starts cold
+     * instead of trusting a log with missing records
+     */
+    private void disable (IOException e) {
+        System.err.println("cache index disabled: " + e.toString());
+        try {
+            if (log != null) {
+                log.close();
+            }
+        } catch (IOException ignored) {
+        }
+        log = null;
+        file.delete();
+    }
+}
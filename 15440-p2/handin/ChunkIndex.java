@@ -0,0 +1,106 @@
+/**
+ * File: ChunkIndex.java
+ * Description: Where to find a copy of each known chunk
+ * Author: Joseph Jia (josephji)
+ *
+ * This file maps chunk hashes to a file and offset holding the chunk, so
+ * a chunk already on this side doesn't have to cross the wire. The
+ * chunks aren't copied anywhere: the index points into the cached
+ * versions (on the proxy) or the served files (on the server) they were
+ * found in.
+ *
+ * Those files can be evicted, deleted or replaced without telling the
+ * index, so a chunk read back is checked against its hash, and a location
+ * that no longer holds it is dropped. The index keeps the most recently
+ * used entries up to a bound.
+ */
+
+// Imported Libraries
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class ChunkIndex {
+    private int capacity;
+    private LinkedHashMap<ByteBuffer, Location> locations; // hash -> copy, in access order
+
+    /*
+     * Class: Location
+     * A file and range holding a chunk
+     */
+    private static class Location {
+        String path;
+        long pos;
+        int len;
+
+        Location (String p, long at, int n) {
+            path = p;
+            pos = at;
+            len = n;
+        }
+    }
+
+    /*
+     * Function: ChunkIndex Constructor
+     *
+     * @param cap - max number of chunks indexed
+     */
+    public ChunkIndex (int cap) {
+        capacity = Math.max(1, cap);
+        locations = new LinkedHashMap<ByteBuffer, Location>(16, 0.75f, true);
+    }
+
+    /*
+     * Function: add
+     * Records where the chunks of a file are
+     *
+     * @param path - file holding the chunks
+     * @param hashes - hash of each chunk, in order
+     * @param lengths - length of each chunk
+     * @param start - offset of the first chunk in the file
+     */
+    public synchronized void add (String path, byte[][] hashes, int[] lengths, long start) {
+        long pos = start;
+        for (int i = 0; i < hashes.length; i++) {
+            locations.put(ByteBuffer.wrap(hashes[i]), new Location(path, pos, lengths[i]));
+            pos += lengths[i];
+        }
+        Iterator<ByteBuffer> it = locations.keySet().iterator();
+        while (locations.size() > capacity && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /*
+     * Function: read
+     * Reads a chunk from where it was last seen
+     *
+     * @param hash - chunk hash
+     * @return the chunk, null if it isn't indexed or is no longer there
+     */
+    public byte[] read (byte[] hash) {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        Location loc;
+        synchronized (this) {
+            loc = locations.get(key);
+        }
+        if (loc == null) {
+            return null;
+        }
+        byte[] buf = new byte[loc.len];
+        try (RandomAccessFile raf = new RandomAccessFile(loc.path, "r")) {
+            raf.seek(loc.pos);
+            raf.readFully(buf);
+            if (Arrays.equals(Chunker.digest(buf, 0, buf.length), hash)) {
+                return buf;
+            }
+        } catch (IOException e) {
+            // evicted or deleted
+        }
+        synchronized (this) {
+            locations.remove(key, loc);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * File: Chunker.java
+ * Description: Content-defined chunking with a rolling gear hash
+ * Author: Joseph Jia (josephji)
+ *
+ * This file splits a byte stream into chunks whose boundaries depend on
+ * the bytes around them rather than on their offsets. A gear hash rolls
+ * over the last 64 bytes, and a chunk ends where its low bits are all
+ * zero, so an insert or delete only moves the boundaries next to it and
+ * the chunks after it come out the same as before. That lets two files
+ * sharing long regions, at any offsets, share most of their chunks.
+ *
+ * Chunks are between MIN_CHUNK and MAX_CHUNK bytes, about AVG_CHUNK on
+ * average, and are named by their SHA-256. The gear table comes from a
+ * fixed seed, so the proxy and the server cut the same bytes the same way.
+ */
+
+// Imported Libraries
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+public class Chunker {
+    public static final int MIN_CHUNK = 2048;
+    public static final int AVG_CHUNK = 8192;
+    public static final int MAX_CHUNK = 65536;
+    // top bits of the hash, which depend on the last 64 bytes; all zero
+    // once every AVG_CHUNK bytes on average
+    private static final long MASK = -1L << (64 - Integer.numberOfTrailingZeros(AVG_CHUNK));
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random rand = new Random(15440);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = rand.nextLong();
+        }
+    }
+
+    private MessageDigest sha;
+    private long hash;
+    private int len; // bytes in the current chunk
+    private ArrayList<byte[]> hashes;
+    private ArrayList<Integer> lengths;
+
+    public Chunker () {
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+        hashes = new ArrayList<byte[]>();
+        lengths = new ArrayList<Integer>();
+    }
+
+    /*
+     * Function: update
+     * Feeds the next bytes of the stream
+     *
+     * @param buf - bytes to feed
+     * @param off - offset of the first byte
+     * @param n - number of bytes
+     */
+    public void update (byte[] buf, int off, int n) {
+        int start = off;
+        for (int i = off; i < off + n; i++) {
+            hash = (hash << 1) + GEAR[buf[i] & 0xff];
+            len++;
+            if ((len >= MIN_CHUNK && (hash & MASK) == 0) || len >= MAX_CHUNK) {
+                sha.update(buf, start, i + 1 - start);
+                cut();
+                start = i + 1;
+            }
+        }
+        sha.update(buf, start, off + n - start);
+    }
+
+    /*
+     * Function: finish
+     * Ends the last chunk at the end of the stream
+     *
+     * @return number of chunks cut
+     */
+    public int finish () {
+        if (len > 0) {
+            cut();
+        }
+        return hashes.size();
+    }
+
+    private void cut () {
+        hashes.add(sha.digest());
+        lengths.add(len);
+        hash = 0;
+        len = 0;
+    }
+
+    public byte[][] hashes () {
+        return hashes.toArray(new byte[0][]);
+    }
+
+    public int[] lengths () {
+        int[] out = new int[lengths.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = lengths.get(i);
+        }
+        return out;
+    }
+
+    /*
+     * Function: digest
+     * @return SHA-256 of a byte range, to check a chunk read back
+     */
+    public static byte[] digest (byte[] buf, int off, int n) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(buf, off, n);
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * File: ClockPolicy.java
+ * Description: CLOCK eviction policy
+ * Author: Joseph Jia (josephji)
+ *
+ * This file implements the CLOCK approximation of LRU, the cache's
+ * default policy. A hit sets the entry's reference bit, and the clock
+ * hand gives referenced entries a second chance before evicting them.
+ * The queue only holds idle entries and nothing takes a lock, so hits
+ * stay as cheap as a pin.
+ */
+
+// Imported Libraries
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ClockPolicy implements EvictionPolicy {
+    private ConcurrentLinkedQueue<Cache.Entry> clock;
+    private AtomicInteger queued; // size of the clock, which the queue can't tell in O(1)
+
+    public ClockPolicy () {
+        clock = new ConcurrentLinkedQueue<Cache.Entry>();
+        queued = new AtomicInteger(0);
+    }
+
+    public void added (Cache.Entry ent) {
+        ent.referenced = true;
+    }
+
+    public void hit (Cache.Entry ent) {
+        ent.referenced = true;
+    }
+
+    /*
+     * Function: idle
+     * Puts an entry on the clock unless it is already there
+     */
+    public void idle (Cache.Entry ent) {
+        if (ent.queued.compareAndSet(false, true)) {
+            queued.incrementAndGet();
+            clock.offer(ent);
+        }
+    }
+
+    public void removed (Cache.Entry ent) {
+        // left on the clock, and skipped when the hand gets to it
+    }
+
+    public Cache.Entry victim () {
+        // each entry gets at most one second chance per call
+        int budget = 2 * queued.get() + 1;
+        while (budget-- > 0) {
+            Cache.Entry ent = clock.poll();
+            if (ent == null) {
+                return null;
+            }
+            queued.decrementAndGet();
+            // clear the flag before looking, so an unpin from here on queues it again
+            ent.queued.set(false);
+            if (ent.clients.get() != 0) {
+                continue; // removed, or pinned since it was queued
+            }
+            if (ent.referenced) {
+                ent.referenced = false;
+                idle(ent);
+            }
+            else {
+                return ent;
+            }
+        }
+        return null;
+    }
+
+    public List<Cache.Entry> order () {
+        return new ArrayList<Cache.Entry>(clock);
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * File: DirtyRanges.java
+ * Description: Tracks the byte ranges written through a file descriptor
+ * Author: Joseph Jia (josephji)
+ * 
+ * This file keeps a sorted set of non-overlapping [start, end) ranges.
+ * Overlapping and adjacent writes are merged, so the number of ranges
+ * stays small for sequential writers.
+ */
+
+// Imported Libraries
+import java.io.*;
+import java.util.*;
+
+public class DirtyRanges {
+    private TreeMap<Long, Long> ranges; // start -> end
+    private long bytes;
+
+    public DirtyRanges () {
+        ranges = new TreeMap<Long, Long>();
+        bytes = 0;
+    }
+
+    /*
+     * Function: add
+     * Marks a range of bytes as written
+     * 
+     * @param pos - position of the first byte written
+     * @param len - number of bytes written
+     */
+    public synchronized void add (long pos, long len) {
+        if (len <= 0) {
+            return;
+        }
+        long start = pos;
+        long end = pos + len;
+
+        // merge with a range that starts before and reaches pos
+        Map.Entry<Long, Long> prev = ranges.floorEntry(start);
+        if (prev != null && prev.getValue() >= start) {
+            start = prev.getKey();
+            end = Math.max(end, prev.getValue());
+            bytes -= prev.getValue() - prev.getKey();
+            ranges.remove(prev.getKey());
+        }
+
+        // merge with ranges that start inside the new range
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            bytes -= next.getValue() - next.getKey();
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+
+        ranges.put(start, end);
+        bytes += end - start;
+    }
+
+    /*
+     * Function: isEmpty
+     * @return true if nothing has been written
+     */
+    public synchronized boolean isEmpty () {
+        return ranges.isEmpty();
+    }
+
+    /*
+     * Function: size
+     * @return total number of dirty bytes
+     */
+    public synchronized long size () {
+        return bytes;
+    }
+
+    /*
+     * Function: list
+     * @param length - final length of the file
+     * @return {start, end} of each range, in order and clipped to length
+     */
+    public synchronized ArrayList<long[]> list (long length) {
+        ArrayList<long[]> out = new ArrayList<long[]>();
+        for (Map.Entry<Long, Long> ent : ranges.entrySet()) {
+            long end = Math.min(ent.getValue(), length);
+            if (ent.getKey() < end) {
+                out.add(new long[] {ent.getKey(), end});
+            }
+        }
+        return out;
+    }
+
+    /*
+     * Function: toDelta
+     * Reads the dirty ranges out of a file
+     * 
+     * @param file - view of the file holding the written contents
+     * @param length - final length of the file
+     * @return delta with the contents of each range clipped to length
+     */
+    public synchronized FileDelta toDelta (Overlay file, long length) throws IOException {
+        ArrayList<Long> offsets = new ArrayList<Long>();
+        ArrayList<byte[]> data = new ArrayList<byte[]>();
+        for (Map.Entry<Long, Long> ent : ranges.entrySet()) {
+            long start = ent.getKey();
+            long end = Math.min(ent.getValue(), length);
+            if (start >= end) {
+                continue;
+            }
+            byte[] buf = new byte[(int) (end - start)];
+            file.readAt(start, buf, 0, buf.length);
+            offsets.add(start);
+            data.add(buf);
+        }
+
+        long[] offset_arr = new long[offsets.size()];
+        for (int i = 0; i < offset_arr.length; i++) {
+            offset_arr[i] = offsets.get(i);
+        }
+        return new FileDelta(length, offset_arr, data.toArray(new byte[0][]));
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * File: EvictionPolicy.java
+ * Description: Decides the order the proxy cache evicts entries in
+ * Author: Joseph Jia (josephji)
+ *
+ * This file defines the interface between Cache and its eviction
+ * policies. The cache owns the entries and their client counts, and
+ * tells the policy when an entry is added, hit, left with no clients or
+ * removed. Only idle entries are eviction candidates. victim is only
+ * called by one thread at a time; the other calls can come from any
+ * thread.
+ */
+
+// Imported Libraries
+import java.util.List;
+
+interface EvictionPolicy {
+    void added (Cache.Entry ent);
+    void hit (Cache.Entry ent);
+    void idle (Cache.Entry ent);
+    void removed (Cache.Entry ent);
+
+    /*
+     * Function: victim
+     * @return the next idle entry to evict, null if there is none. The
+     *         entry may have been pinned since it went idle, in which case
+     *         the cache skips it and the policy sees idle again later.
+     */
+    Cache.Entry victim ();
+
+    /*
+     * Function: order
+     * @return the idle entries, the first to be evicted first
+     */
+    List<Cache.Entry> order ();
+
+    /*
+     * Function: named
+     * @param name - lru, gdsf or tinylfu
+     * @return a new policy of that name
+     */
+    static EvictionPolicy named (String name) {
+        switch (name) {
+            case "lru":
+                return new ClockPolicy();
+            case "gdsf":
+                return new GdsfPolicy();
+            case "tinylfu":
+                return new TinyLfuPolicy();
+            default:
+                throw new IllegalArgumentException("unknown eviction policy: " + name);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * File: FdState.java
+ * Description: Everything the proxy knows about one open fd
+ * Author: Joseph Jia (josephji)
+ *
+ * This file holds the state of one open file descriptor, set up at open:
+ * which cached version it is on and the one object its reads and writes
+ * go to. A read fd has a shared map, a RandomAccessFile (while the
+ * version is still streaming in, or with mmap off) or a BlockFile (big
+ * files). A write fd has an Overlay, which also keeps its dirty ranges.
+ * A directory fd has none of them. Each of those keeps its own file
+ * pointer, so read, write and lseek need nothing but this object.
+ */
+
+// Imported Libraries
+import java.io.RandomAccessFile;
+
+public class FdState {
+    public int fd; // number the FdTable handed out for it
+    public String server_path; // normalized server pathname
+    public int version; // version the fd was opened on
+    public String cache_path; // cache pathname of that version
+    public String over_path; // cache pathname of the overlay, null for read fds
+
+    public MappedFile.Reader map;
+    public RandomAccessFile raf;
+    public PartialFile fill; // set while the raf's version is streaming in
+    public BlockFile blocks;
+    public Overlay overlay;
+
+    public FdState (String p, int v, String cp) {
+        server_path = p;
+        version = v;
+        cache_path = cp;
+    }
+
+    /*
+     * Function: isDirectory
+     * @return true if the fd is on a directory, so has nothing to read
+     */
+    public boolean isDirectory () {
+        return map == null && raf == null && blocks == null && overlay == null;
+    }
+}
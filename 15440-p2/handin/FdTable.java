@@ -0,0 +1,105 @@
+/**
+ * File: FdTable.java
+ * Description: Table of open fds indexed by fd number
+ * Author: Joseph Jia (josephji)
+ *
+ * This file maps fd numbers to their FdState with an array indexed by
+ * the low bits of the fd, so a lookup is one bounds mask, one volatile
+ * read and one compare, with no boxing or hashing. Fd numbers go up
+ * monotonically, as they did before the table, so a closed fd is never
+ * handed out again and a client holding a stale one gets EBADF instead
+ * of another open's file. A number whose slot is still taken by an open
+ * fd is skipped, and the array doubles once it is half full, so it only
+ * grows with the most fds open at once. Adding and removing take a
+ * lock; lookups don't.
+ */
+
+// Imported Libraries
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class FdTable {
+    private volatile AtomicReferenceArray<FdState> slots; // length is a power of two
+    private int first; // lowest fd number to hand out
+    private int next; // next fd number to try
+    private int count; // fds open
+
+    /*
+     * Function: FdTable Constructor
+     *
+     * @param first - lowest fd number to hand out
+     */
+    public FdTable (int first) {
+        slots = new AtomicReferenceArray<FdState>(64);
+        this.first = first;
+        next = first;
+        count = 0;
+    }
+
+    /*
+     * Function: add
+     * @param st - state of the new fd
+     * @return fd number for it
+     */
+    public synchronized int add (FdState st) {
+        if (2 * (count + 1) > slots.length()) {
+            // only add and remove write slots, and they hold the lock
+            AtomicReferenceArray<FdState> bigger = new AtomicReferenceArray<FdState>(slots.length() * 2);
+            for (int i = 0; i < slots.length(); i++) {
+                FdState open = slots.get(i);
+                if (open != null) {
+                    bigger.set(open.fd & (bigger.length() - 1), open);
+                }
+            }
+            slots = bigger;
+        }
+        int fd = next;
+        while (slots.get(fd & (slots.length() - 1)) != null) {
+            fd = after(fd);
+        }
+        next = after(fd);
+        count++;
+        st.fd = fd;
+        slots.set(fd & (slots.length() - 1), st);
+        return fd;
+    }
+
+    /*
+     * Function: get
+     * @param fd - fd number
+     * @return state of the fd, null if it isn't open
+     */
+    public FdState get (int fd) {
+        AtomicReferenceArray<FdState> s = slots;
+        if (fd < first) {
+            return null;
+        }
+        FdState st = s.get(fd & (s.length() - 1));
+        return (st != null && st.fd == fd) ? st : null;
+    }
+
+    /*
+     * Function: remove
+     * Closes an fd number
+     *
+     * @param fd - fd number
+     * @return state the fd had, null if it wasn't open
+     */
+    public synchronized FdState remove (int fd) {
+        FdState st = get(fd);
+        if (st == null) {
+            return null;
+        }
+        slots.set(fd & (slots.length() - 1), null);
+        count--;
+        return st;
+    }
+
+    /*
+     * Function: after
+     * @param fd - fd number
+     * @return the number after it, wrapping back to first on overflow
+     */
+    private int after (int fd) {
+        return fd == Integer.MAX_VALUE ? first : fd + 1;
+    }
+}
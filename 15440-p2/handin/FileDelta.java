@@ -0,0 +1,25 @@
+/**
+ * File: FileDelta.java
+ * Description: Changed byte ranges of a file sent on close
+ * Author: Joseph Jia (josephji)
+ * 
+ * This file defines the serializable delta that the proxy sends to
+ * RMIInterface.updateRanges. It holds only the byte ranges a client
+ * wrote, plus the final length of the file, so write-back scales with
+ * the bytes changed instead of the file size.
+ */
+
+// Imported Libraries
+import java.io.Serializable;
+
+public class FileDelta implements Serializable {
+    public long length;
+    public long[] offsets;
+    public byte[][] data;
+
+    public FileDelta (long l, long[] o, byte[][] d) {
+        length = l;
+        offsets = o;
+        data = d;
+    }
+}
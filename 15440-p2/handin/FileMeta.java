@@ -0,0 +1,32 @@
+/**
+ * File: FileMeta.java
+ * Description: File metadata returned by the batch RPCs
+ * Author: Joseph Jia (josephji)
+ * 
+ * This file defines the metadata returned for each path by
+ * RMIInterface.statFiles and the batch validate. It carries everything
+ * open needs to know before moving any data. As a Lease, the term is 0
+ * unless the batch granted a lease on the version.
+ */
+
+// Imported Libraries
+import java.io.Serializable;
+
+public class FileMeta extends Lease implements Serializable {
+    public long length;
+    public boolean directory;
+
+    public FileMeta (int v, long t, long l, boolean d) {
+        super(v, t);
+        length = l;
+        directory = d;
+    }
+
+    /*
+     * Function: exists
+     * @return true if the file exists on the server
+     */
+    public boolean exists () {
+        return version != 0;
+    }
+}
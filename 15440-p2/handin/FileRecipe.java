@@ -0,0 +1,27 @@
+/**
+ * File: FileRecipe.java
+ * Description: Chunk list of one version of a file
+ * Author: Joseph Jia (josephji)
+ * 
+ * This file defines the serializable object sent back by
+ * RMIInterface.getRecipe. It names the content-defined chunks of a
+ * version in order, by SHA-256 and length, so the proxy can build the
+ * version out of chunks it already has and fetch only the rest.
+ */
+
+// Imported Libraries
+import java.io.Serializable;
+
+public class FileRecipe implements Serializable {
+    public long length;
+    public int version;
+    public byte[][] hashes;
+    public int[] lengths;
+
+    public FileRecipe (long l, int v, byte[][] h, int[] n) {
+        length = l;
+        version = v;
+        hashes = h;
+        lengths = n;
+    }
+}
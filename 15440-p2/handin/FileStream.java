@@ -0,0 +1,27 @@
+/**
+ * File: FileStream.java
+ * Description: Header returned when opening a file stream on the server
+ * Author: Joseph Jia (josephji)
+ * 
+ * This file defines the serializable header sent back by
+ * RMIInterface.openStream. It carries the length, the version and the
+ * first window of bytes of the file, so small files only need one call.
+ * If there is more to send, reader points to the exported RemoteStream.
+ */
+
+// Imported Libraries
+import java.io.Serializable;
+
+public class FileStream implements Serializable {
+    public long length;
+    public int version;
+    public byte[] data;
+    public RemoteStream reader;
+
+    public FileStream (long l, int v, byte[] d, RemoteStream r) {
+        length = l;
+        version = v;
+        data = d;
+        reader = r;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * File: GdsfPolicy.java
+ * Description: Greedy-Dual-Size-Frequency eviction policy
+ * Author: Joseph Jia (josephji)
+ *
+ * This file implements GDSF. An idle entry's priority is
+ * L + hits / size, and the entry with the lowest priority is evicted
+ * first. L is raised to the priority of each evicted entry, so entries
+ * that sit idle for long age out even if they were once hot. Big files
+ * have low priority unless they are hit often, so one read of a big cold
+ * file can't flush many small hot ones. All calls share one lock.
+ */
+
+// Imported Libraries
+import java.util.*;
+
+public class GdsfPolicy implements EvictionPolicy {
+    private double inflation; // L
+    private long next_seq;
+    private HashMap<Cache.Entry, Node> nodes;
+    private TreeSet<Node> idle;
+
+    /*
+     * Class: Node
+     * Policy state of one entry. seq breaks ties between equal priorities.
+     */
+    private static class Node implements Comparable<Node> {
+        public Cache.Entry ent;
+        public long hits;
+        public double priority;
+        public long seq;
+
+        public Node (Cache.Entry e) {
+            ent = e;
+            hits = 1;
+        }
+
+        public int compareTo (Node other) {
+            int c = Double.compare(priority, other.priority);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    public GdsfPolicy () {
+        inflation = 0;
+        next_seq = 0;
+        nodes = new HashMap<Cache.Entry, Node>();
+        idle = new TreeSet<Node>();
+    }
+
+    public synchronized void added (Cache.Entry ent) {
+        nodes.put(ent, new Node(ent));
+    }
+
+    public synchronized void hit (Cache.Entry ent) {
+        Node node = nodes.get(ent);
+        if (node != null) {
+            node.hits++;
+        }
+    }
+
+    public synchronized void idle (Cache.Entry ent) {
+        Node node = nodes.get(ent);
+        if (node == null) {
+            return;
+        }
+        idle.remove(node);
+        node.priority = inflation + node.hits / (double) Math.max(1, ent.size.get());
+        node.seq = next_seq++;
+        idle.add(node);
+    }
+
+    public synchronized void removed (Cache.Entry ent) {
+        Node node = nodes.remove(ent);
+        if (node != null) {
+            idle.remove(node);
+        }
+    }
+
+    public synchronized Cache.Entry victim () {
+        Node node = idle.pollFirst();
+        if (node == null) {
+            return null;
+        }
+        inflation = node.priority;
+        return node.ent;
+    }
+
+    public synchronized List<Cache.Entry> order () {
+        ArrayList<Cache.Entry> list = new ArrayList<Cache.Entry>();
+        for (Node node : idle) {
+            list.add(node.ent);
+        }
+        return list;
+    }
+}
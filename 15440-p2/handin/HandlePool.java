@@ -0,0 +1,186 @@
+/**
+ * File: HandlePool.java
+ * Description: Bounded pool of open read handles for the server
+ * Author: Joseph Jia (josephji)
+ *
+ * This file keeps server files open between RPCs, so a fetch doesn't
+ * open and close its file once per call. Handles are read-only channels
+ * keyed by normalized server path and read with positional reads, so
+ * any number of callers can share one without seeking.
+ *
+ * Each handle counts the callers using it. When the pool is over
+ * capacity the least recently used handle is dropped, and a dropped
+ * handle is closed once its last caller releases it. A commit or delete
+ * drops the path's handle the same way, so new callers open the new file
+ * while streams already open keep reading the version they started on.
+ * Callers acquire a handle under the path's read lock and the server
+ * drops it under the write lock, so nobody gets a handle to a file that
+ * has been replaced.
+ *
+ * The pool also remembers which paths have had no handle acquired since
+ * the server marked them unread, so the server knows when nobody can be
+ * reading a file it wants to change in place.
+ */
+
+// Imported Libraries
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class HandlePool {
+    private int capacity;
+    private LinkedHashMap<String, Handle> handles; // in access order
+    private LinkedHashMap<String, Boolean> unread; // paths marked unread, oldest first
+    private static final int MAX_UNREAD = 1024;
+
+    /*
+     * Class: Handle
+     * One open file, shared by every caller that acquired it
+     */
+    public static class Handle {
+        public final FileChannel ch;
+        private int refs;
+        private boolean dropped; // out of the pool, close on last release
+
+        private Handle (FileChannel c) {
+            ch = c;
+        }
+    }
+
+    /*
+     * Function: HandlePool Constructor
+     *
+     * @param cap - max number of handles kept in the pool
+     */
+    public HandlePool (int cap) {
+        capacity = Math.max(1, cap);
+        handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+        unread = new LinkedHashMap<String, Boolean>() {
+            protected boolean removeEldestEntry (Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_UNREAD; // forgetting one only costs the server a copy
+            }
+        };
+    }
+
+    /*
+     * Function: acquire
+     * Gets the open handle of a file, opening it if it isn't pooled.
+     * The open is done outside the pool's monitor, so one slow open
+     * doesn't hold up callers of other files; if two callers open the
+     * same file at once, the first to finish is pooled and the other
+     * closes its channel.
+     * The caller holds the file's read lock and must release the handle.
+     *
+     * @param serv_path - normalized server pathname of a regular file
+     * @return the handle, with a reference added for the caller
+     */
+    public Handle acquire (String serv_path) throws IOException {
+        synchronized (this) {
+            if (!unread.isEmpty()) {
+                unread.remove(serv_path);
+            }
+            Handle h = handles.get(serv_path);
+            if (h != null) {
+                Metrics.count("server.handle_hit");
+                h.refs++;
+                return h;
+            }
+        }
+
+        // the read lock keeps the file from being replaced until it's pooled
+        Metrics.count("server.handle_open");
+        Handle opened = new Handle(FileChannel.open(new File(serv_path).toPath(), StandardOpenOption.READ));
+        Handle h;
+        synchronized (this) {
+            h = handles.get(serv_path);
+            if (h == null) {
+                h = opened;
+                handles.put(serv_path, h);
+            }
+            h.refs++;
+            evict();
+        }
+        if (h != opened) {
+            close(opened);
+        }
+        return h;
+    }
+
+    /*
+     * Function: release
+     * Drops a caller's reference, closing the handle if it was dropped
+     * from the pool and nobody else is using it
+     *
+     * @param h - handle from acquire
+     */
+    public synchronized void release (Handle h) {
+        h.refs--;
+        if (h.dropped && h.refs == 0) {
+            close(h);
+        }
+    }
+
+    /*
+     * Function: invalidate
+     * Drops a path's handle, on a commit or delete. The caller holds the
+     * file's write lock.
+     *
+     * @param serv_path - normalized server pathname
+     */
+    public synchronized void invalidate (String serv_path) {
+        Handle h = handles.remove(serv_path);
+        if (h != null) {
+            drop(h);
+        }
+    }
+
+    /*
+     * Function: markUnread
+     * Marks a path as unread until a handle to it is next acquired. The
+     * caller holds the file's write lock and has just replaced the file.
+     *
+     * @param serv_path - normalized server pathname
+     */
+    public synchronized void markUnread (String serv_path) {
+        unread.put(serv_path, Boolean.TRUE);
+    }
+
+    /*
+     * Function: isUnread
+     * @param serv_path - normalized server pathname
+     * @return true if no handle to the path was acquired since it was
+     *         marked unread
+     */
+    public synchronized boolean isUnread (String serv_path) {
+        return unread.containsKey(serv_path);
+    }
+
+    /*
+     * Function: evict
+     * Drops least recently used handles until the pool is in capacity
+     */
+    private void evict () {
+        Iterator<Handle> it = handles.values().iterator();
+        while (handles.size() > capacity && it.hasNext()) {
+            Handle h = it.next();
+            it.remove();
+            drop(h);
+        }
+    }
+
+    private void drop (Handle h) {
+        h.dropped = true;
+        if (h.refs == 0) {
+            close(h);
+        }
+    }
+
+    private static void close (Handle h) {
+        try {
+            h.ch.close();
+        } catch (IOException e) {
+            System.err.println(e.toString());
+        }
+    }
+}
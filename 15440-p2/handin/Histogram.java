@@ -0,0 +1,117 @@
+/**
+ * File: Histogram.java
+ * Description: Lock-free latency histogram
+ * Author: Joseph Jia (josephji)
+ *
+ * This file implements a histogram with HDR-style log-linear buckets.
+ * Every power of two is split into 8 buckets, so any recorded value is
+ * off by at most 1/8 in the reported percentiles. Values below 8 are
+ * exact. Recording is one atomic add per value, so threads never wait
+ * on each other.
+ */
+
+// Imported Libraries
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private AtomicLongArray buckets;
+    private LongAdder count;
+    private LongAdder sum;
+    private AtomicLong max;
+
+    public Histogram () {
+        buckets = new AtomicLongArray(NUM_BUCKETS);
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new AtomicLong(0);
+    }
+
+    /*
+     * Function: bucket
+     * @param value - non-negative value
+     * @return index of the bucket the value falls in
+     */
+    private static int bucket (long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /*
+     * Function: lowest
+     * @param idx - index of a bucket
+     * @return the smallest value that falls in the bucket
+     */
+    private static long lowest (int idx) {
+        if (idx < SUB_COUNT) {
+            return idx;
+        }
+        int exp = idx / SUB_COUNT + SUB_BITS - 1;
+        long sub = idx % SUB_COUNT;
+        return (SUB_COUNT + sub) << (exp - SUB_BITS);
+    }
+
+    /*
+     * Function: record
+     * @param value - value to record, negative values count as 0
+     */
+    public void record (long value) {
+        value = Math.max(0, value);
+        buckets.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long count () {
+        return count.sum();
+    }
+
+    /*
+     * Function: percentile
+     * @param p - fraction of values, from 0 to 1
+     * @return a value that p of the recorded values are at or below,
+     *         0 if nothing was recorded
+     */
+    public long percentile (double p) {
+        long total = 0;
+        long[] snap = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            snap[i] = buckets.get(i);
+            total += snap[i];
+        }
+        long target = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += snap[i];
+            if (seen >= target) {
+                // middle of the bucket, but never more than the max seen
+                long mid = (lowest(i) + (i + 1 < NUM_BUCKETS ? lowest(i + 1) : lowest(i))) / 2;
+                return Math.min(mid, max.get());
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * Function: summary
+     * @return count, mean and percentiles, with values given in ns
+     *         printed in microseconds
+     */
+    public String summary () {
+        long n = count();
+        double mean = n == 0 ? 0 : sum.sum() / (double) n;
+        return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus",
+            n, mean / 1e3, percentile(0.5) / 1e3, percentile(0.9) / 1e3,
+            percentile(0.99) / 1e3, max.get() / 1e3);
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * File: Lease.java
+ * Description: Version lease granted by the server
+ * Author: Joseph Jia (josephji)
+ * 
+ * This file defines the lease returned by RMIInterface.validate.
+ * While the lease is valid the server will not change the file, so the
+ * proxy can open it at this version without asking the server again.
+ * The proxy starts the lease clock when it sends the request, so its
+ * lease always runs out before the server's does.
+ */
+
+// Imported Libraries
+import java.io.Serializable;
+
+public class Lease implements Serializable {
+    public int version;
+    public long term_ms;
+    public transient long expires; // proxy-side System.nanoTime() deadline
+    public transient boolean used; // proxy served an open from this lease
+
+    public Lease (int v, long t) {
+        version = v;
+        term_ms = t;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * File: LockTable.java
+ * Description: Fixed set of striped read-write locks for server paths
+ * Author: Joseph Jia (josephji)
+ *
+ * This file maps every server path onto one of a fixed number of
+ * read-write locks by its hash. The table never grows with the number of
+ * paths touched and getting a lock allocates nothing. Paths that share a
+ * stripe share a lock, which only costs concurrency when two of them are
+ * busy at once, so the table is sized well above the number of threads.
+ *
+ * Code that holds more than one lock at a time takes them in stripe
+ * order, since two paths in one batch can land on the same stripe or in
+ * either order.
+ */
+
+// Imported Libraries
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class LockTable {
+    private ReentrantReadWriteLock[] stripes;
+    private int mask;
+
+    /*
+     * Function: LockTable Constructor
+     *
+     * @param n - number of locks, rounded up to a power of two
+     */
+    public LockTable (int n) {
+        int size = 1;
+        while (size < n) {
+            size <<= 1;
+        }
+        stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        mask = size - 1;
+    }
+
+    /*
+     * Function: stripe
+     * @param serv_path - normalized server pathname
+     * @return index of the lock guarding the path
+     */
+    public int stripe (String serv_path) {
+        int h = serv_path.hashCode();
+        return (h ^ (h >>> 16)) & mask; // fold the high bits in, as HashMap does
+    }
+
+    /*
+     * Function: get
+     * @param serv_path - normalized server pathname
+     * @return the lock guarding the path
+     */
+    public ReentrantReadWriteLock get (String serv_path) {
+        return stripes[stripe(serv_path)];
+    }
+
+    /*
+     * Function: at
+     * @param stripe - index from stripe()
+     * @return the lock at that index
+     */
+    public ReentrantReadWriteLock at (int stripe) {
+        return stripes[stripe];
+    }
+
+    /*
+     * Function: size
+     * @return number of locks
+     */
+    public int size () {
+        return stripes.length;
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * File: Lz.java
+ * Description: Fast LZ77 block compression in the LZ4 block format
+ * Author: Joseph Jia (josephji)
+ *
+ * This file compresses byte arrays with a single-probe hash table, the
+ * way LZ4 does, trading ratio for speed so compressing a chunk costs
+ * less than sending the bytes it saves. The output is a series of
+ * sequences, each a token, a run of literal bytes, and a match copied
+ * from up to 64 KB back:
+ *
+ *     token: high 4 bits literal count, low 4 bits match length - 4
+ *            (15 in either means more length bytes follow, 255 each
+ *            until one is less)
+ *     literals
+ *     match offset: 2 bytes, little-endian
+ *
+ * The last sequence has literals only, and a match never covers the last
+ * 5 bytes. Nothing here checks the output's length; the caller keeps it.
+ */
+
+// Imported Libraries
+import java.util.Arrays;
+
+public class Lz {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_LOG = 14;
+    private static final int LAST_LITERALS = 5; // bytes at the end that are always literals
+    private static final int MF_LIMIT = 12; // no match starts this close to the end
+    private static final int MAX_OFFSET = 65535;
+    private static final int SKIP_TRIGGER = 6; // step faster through bytes that don't match
+
+    /*
+     * Function: maxLength
+     * @return largest output compress can write for len bytes
+     */
+    public static int maxLength (int len) {
+        return len + len / 255 + 16;
+    }
+
+    /*
+     * Function: compress
+     * Compresses a range of bytes
+     *
+     * @param src - bytes to compress
+     * @param off - offset of the first byte
+     * @param len - number of bytes
+     * @param dst - output, at least maxLength(len) bytes
+     * @param dst_off - offset to write the output at
+     * @return number of bytes written
+     */
+    public static int compress (byte[] src, int off, int len, byte[] dst, int dst_off) {
+        int end = off + len;
+        int anchor = off; // first byte not yet written out
+        int op = dst_off;
+
+        if (len > MF_LIMIT) {
+            int[] table = new int[1 << HASH_LOG];
+            Arrays.fill(table, -1);
+            int match_limit = end - MF_LIMIT;
+            int ip = off;
+            int searches = 1 << SKIP_TRIGGER;
+            while (ip < match_limit) {
+                int seq = readInt(src, ip);
+                int h = hash(seq);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                    ip += searches++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                searches = 1 << SKIP_TRIGGER;
+
+                // grow the match back over literals, then forward
+                while (ip > anchor && ref > off && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int match_len = MIN_MATCH;
+                int match_end = end - LAST_LITERALS;
+                while (ip + match_len < match_end && src[ip + match_len] == src[ref + match_len]) {
+                    match_len++;
+                }
+
+                op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, match_len);
+                ip += match_len;
+                anchor = ip;
+                if (ip - 2 >= off && ip < match_limit) {
+                    table[hash(readInt(src, ip - 2))] = ip - 2;
+                }
+            }
+        }
+
+        // the rest goes out as literals
+        int lit_len = end - anchor;
+        op = writeToken(dst, op, lit_len);
+        System.arraycopy(src, anchor, dst, op, lit_len);
+        return op + lit_len - dst_off;
+    }
+
+    /*
+     * Function: decompress
+     * Decompresses the output of compress
+     *
+     * @param src - compressed bytes
+     * @param off - offset of the first byte
+     * @param len - number of compressed bytes
+     * @param dst - output, exactly as long as the original
+     * @throws IllegalArgumentException if src is corrupt
+     */
+    public static void decompress (byte[] src, int off, int len, byte[] dst) {
+        int ip = off;
+        int end = off + len;
+        int op = 0;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xff;
+                int lit_len = token >>> 4;
+                if (lit_len == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        lit_len += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, lit_len);
+                ip += lit_len;
+                op += lit_len;
+                if (ip >= end) {
+                    break;
+                }
+
+                int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+                ip += 2;
+                int match_len = token & 15;
+                if (match_len == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xff;
+                        match_len += b;
+                    } while (b == 255);
+                }
+                match_len += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < 0) {
+                    throw new IllegalArgumentException("bad match offset " + offset + " at " + op);
+                }
+                if (offset >= match_len) {
+                    System.arraycopy(dst, ref, dst, op, match_len);
+                }
+                else {
+                    // the match overlaps what it writes, so copy forward a byte at a time
+                    for (int i = 0; i < match_len; i++) {
+                        dst[op + i] = dst[ref + i];
+                    }
+                }
+                op += match_len;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("corrupt block at " + op, e);
+        }
+        if (op != dst.length) {
+            throw new IllegalArgumentException("block is " + op + " bytes, expected " + dst.length);
+        }
+    }
+
+    /*
+     * Function: writeSequence
+     * Writes a token, literals and match
+     *
+     * @return offset past the sequence
+     */
+    private static int writeSequence (byte[] dst, int op, byte[] src, int lit_start, int lit_len,
+                                      int offset, int match_len) {
+        int token_at = op;
+        op = writeToken(dst, op, lit_len);
+        System.arraycopy(src, lit_start, dst, op, lit_len);
+        op += lit_len;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+
+        int ml = match_len - MIN_MATCH;
+        dst[token_at] |= (byte) Math.min(ml, 15);
+        if (ml >= 15) {
+            op = writeExtra(dst, op, ml - 15);
+        }
+        return op;
+    }
+
+    /*
+     * Function: writeToken
+     * Writes a new token with the literal count in its high half, and any
+     * length bytes that don't fit in the token. The match half is filled
+     * in once the match is known.
+     *
+     * @return offset past what was written
+     */
+    private static int writeToken (byte[] dst, int op, int n) {
+        dst[op++] = (byte) (Math.min(n, 15) << 4);
+        if (n >= 15) {
+            op = writeExtra(dst, op, n - 15);
+        }
+        return op;
+    }
+
+    private static int writeExtra (byte[] dst, int op, int n) {
+        while (n >= 255) {
+            dst[op++] = (byte) 255;
+            n -= 255;
+        }
+        dst[op++] = (byte) n;
+        return op;
+    }
+
+    private static int readInt (byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+    }
+
+    private static int hash (int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG); // Knuth's multiplicative hash
+    }
+}
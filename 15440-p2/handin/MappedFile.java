@@ -0,0 +1,111 @@
+/**
+ * File: MappedFile.java
+ * Description: Shared memory map of a cached version for read-only fds
+ * Author: Joseph Jia (josephji)
+ *
+ * This file maps a cached version into memory once and shares the map
+ * between every read-only fd open on it. Cached versions never change
+ * after they are complete, so one map can serve all of them. Each fd
+ * reads through its own Reader, which keeps the file pointer, so a read
+ * is a bounds-checked copy out of the map with no system call.
+ *
+ * A map is kept as long as its version is cached, and forgotten when the
+ * cache drops the version. Java has no way to unmap a file, so a map
+ * only goes away once it is garbage collected; mapping again on every
+ * open would pile up mappings faster than they are collected. Readers
+ * already open on a dropped version keep reading through their map, the
+ * same as through an open file.
+ */
+
+// Imported Libraries
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class MappedFile {
+    private static ConcurrentHashMap<String, MappedFile> maps = new ConcurrentHashMap<String, MappedFile>();
+
+    private ByteBuffer buf;
+
+    private MappedFile (ByteBuffer b) {
+        buf = b;
+    }
+
+    /*
+     * Function: open
+     * Opens a Reader on a cached version, mapping the version if it
+     * isn't mapped yet
+     *
+     * @param file - cached version, complete and under 2 GB
+     * @return new Reader at offset 0
+     */
+    public static Reader open (File file) throws IOException {
+        String path = file.getPath();
+        MappedFile map = maps.get(path);
+        if (map == null) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                map = new MappedFile(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+            }
+            MappedFile old = maps.putIfAbsent(path, map);
+            if (old != null) {
+                map = old;
+            }
+        }
+        return new Reader(map);
+    }
+
+    /*
+     * Function: forget
+     * Drops the map of a version, once the cache drops the version
+     *
+     * @param path - cache pathname of the version
+     */
+    public static void forget (String path) {
+        maps.remove(path);
+    }
+
+    /*
+     * Class: Reader
+     * One fd's view of a shared map, with its own file pointer
+     */
+    public static class Reader {
+        private ByteBuffer buf;
+        private long pos;
+
+        private Reader (MappedFile m) {
+            buf = m.buf.duplicate(); // own position, so readers don't interfere
+            pos = 0;
+        }
+
+        public long length () {
+            return buf.capacity();
+        }
+
+        public long getFilePointer () {
+            return pos;
+        }
+
+        public void seek (long p) {
+            pos = p;
+        }
+
+        /*
+         * Function: read
+         * Copies from the file pointer into dst
+         *
+         * @param dst - buffer to read into
+         * @return number of bytes read, 0 at or past the end of the file
+         */
+        public int read (byte[] dst) {
+            if (pos >= buf.capacity()) {
+                return 0;
+            }
+            int n = (int) Math.min(dst.length, buf.capacity() - pos);
+            buf.position((int) pos);
+            buf.get(dst, 0, n);
+            pos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * File: Metrics.java
+ * Description: Counters and latency histograms for the proxy and server
+ * Author: Joseph Jia (josephji)
+ *
+ * This file keeps named counters and latency histograms in one static
+ * registry shared by the proxy and server. Metrics are off unless
+ * enable is called, and every call checks that first, so the cost when
+ * off is one volatile read. When on, the registry is exposed as a JMX
+ * MBean, with one attribute per metric and a dump operation, and can
+ * also print a text dump every few seconds.
+ *
+ * Names are dotted, e.g. proxy.open (time per call), rpc.openStream
+ * (round trip per RMI call), cache.hit (count).
+ */
+
+// Imported Libraries
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+public class Metrics implements DynamicMBean {
+    public static volatile boolean enabled = false;
+    private static ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    private static ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    /*
+     * Function: enable
+     * Turns metrics on and registers the MBean
+     *
+     * @param name - name of the process in the MBean, e.g. proxy
+     * @param dump_secs - seconds between text dumps to stderr, 0 for none
+     */
+    public static void enable (String name, long dump_secs) {
+        enabled = true;
+        try {
+            ObjectName id = new ObjectName("p2:type=Metrics,name=" + name);
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            if (!mbs.isRegistered(id)) {
+                mbs.registerMBean(new Metrics(), id);
+            }
+        } catch (JMException e) {
+            System.err.println("metrics: " + e.toString());
+        }
+        if (dump_secs > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-dump");
+                t.setDaemon(true);
+                return t;
+            });
+            dumper.scheduleAtFixedRate(() -> System.err.print(dump()),
+                dump_secs, dump_secs, TimeUnit.SECONDS);
+        }
+    }
+
+    /*
+     * Function: start
+     * @return start time to pass to time, 0 if metrics are off
+     */
+    public static long start () {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /*
+     * Function: time
+     * Records the time since start in a histogram
+     *
+     * @param name - name of the histogram
+     * @param start - value returned by start
+     */
+    public static void time (String name, long start) {
+        if (!enabled) {
+            return;
+        }
+        histogram(name).record(System.nanoTime() - start);
+    }
+
+    public static void count (String name) {
+        add(name, 1);
+    }
+
+    /*
+     * Function: add
+     * Adds to a counter
+     *
+     * @param name - name of the counter
+     * @param n - amount to add
+     */
+    public static void add (String name, long n) {
+        if (!enabled) {
+            return;
+        }
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(n);
+    }
+
+    /*
+     * Function: get
+     * @return value of a counter, 0 if it was never added to
+     */
+    public static long get (String name) {
+        LongAdder counter = counters.get(name);
+        return (counter == null) ? 0 : counter.sum();
+    }
+
+    public static Histogram histogram (String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /*
+     * Function: timed
+     * Wraps a remote stub so the round trip of every call is recorded
+     * as prefix + method name. Left unwrapped when metrics are off.
+     *
+     * @param stub - stub to wrap
+     * @param type - remote interface of the stub
+     * @param prefix - prefix of the histogram names
+     * @return the wrapped stub
+     */
+    public static <T> T timed (T stub, Class<T> type, String prefix) {
+        if (!enabled) {
+            return stub;
+        }
+        InvocationHandler handler = (obj, method, args) -> {
+            long start = System.nanoTime();
+            try {
+                return method.invoke(stub, args);
+            } catch (InvocationTargetException e) {
+                count(prefix + method.getName() + ".errors");
+                throw e.getCause();
+            } finally {
+                time(prefix + method.getName(), start);
+            }
+        };
+        return type.cast(java.lang.reflect.Proxy.newProxyInstance(
+            type.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    /*
+     * Function: dump
+     * @return every metric, one per line, sorted by name
+     */
+    public static String dump () {
+        StringBuilder out = new StringBuilder("--- metrics ---\n");
+        for (String name : new TreeSet<String>(counters.keySet())) {
+            out.append(name).append(' ').append(counters.get(name).sum()).append('\n');
+        }
+        for (String name : new TreeSet<String>(histograms.keySet())) {
+            out.append(name).append(' ').append(histograms.get(name).summary()).append('\n');
+        }
+        return out.toString();
+    }
+
+    // DynamicMBean: counters are Long attributes, histograms String summaries
+
+    public Object getAttribute (String name) throws AttributeNotFoundException {
+        LongAdder counter = counters.get(name);
+        if (counter != null) {
+            return counter.sum();
+        }
+        Histogram hist = histograms.get(name);
+        if (hist != null) {
+            return hist.summary();
+        }
+        throw new AttributeNotFoundException(name);
+    }
+
+    public AttributeList getAttributes (String[] names) {
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException e) {
+                // left out, as the interface allows
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute (Attribute attr) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read-only");
+    }
+
+    public AttributeList setAttributes (AttributeList attrs) {
+        return new AttributeList();
+    }
+
+    public Object invoke (String action, Object[] params, String[] sig) throws ReflectionException {
+        if (action.equals("dump")) {
+            return dump();
+        }
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    public MBeanInfo getMBeanInfo () {
+        ArrayList<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+        for (String name : new TreeSet<String>(counters.keySet())) {
+            attrs.add(new MBeanAttributeInfo(name, "java.lang.Long", "counter", true, false, false));
+        }
+        for (String name : new TreeSet<String>(histograms.keySet())) {
+            attrs.add(new MBeanAttributeInfo(name, "java.lang.String", "latency", true, false, false));
+        }
+        MBeanOperationInfo[] ops = {
+            new MBeanOperationInfo("dump", "all metrics as text", new MBeanParameterInfo[0],
+                "java.lang.String", MBeanOperationInfo.INFO)
+        };
+        return new MBeanInfo(Metrics.class.getName(), "proxy and server metrics",
+            attrs.toArray(new MBeanAttributeInfo[0]), null, ops, null);
+    }
+}
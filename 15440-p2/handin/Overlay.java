@@ -0,0 +1,261 @@
+/**
+ * File: Overlay.java
+ * Description: Copy-on-write view of a cached file for a writable fd
+ * Author: Joseph Jia (josephji)
+ * 
+ * This file implements the private copy behind a writable file
+ * descriptor. Reads go through to the shared cached version until a
+ * block is written. The first write to a block copies just that block
+ * into the fd's overlay file, and later reads and writes of the block
+ * use the overlay. On close the overlay is merged with the base into
+ * the new cached version.
+ * 
+ * Block copies use FileChannel.transferTo, so file-to-file copies never
+ * pass through a Java buffer.
+ */
+
+// Imported Libraries
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class Overlay {
+    public static final int BLOCK_SIZE = 4096;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(BLOCK_SIZE);
+
+    private FileChannel base;
+    private long base_length;
+    private FileChannel over;
+    private HashMap<Long, Long> slots; // block index -> offset in overlay file
+    private long length;
+    private long pos;
+    public DirtyRanges dirty;
+
+    /* 
+     * Function: Overlay Constructor
+     * Opens a copy-on-write view of a cached file
+     * 
+     * @param base_file - shared cached version to read through to
+     * @param over_file - private overlay file for this fd
+     */
+    public Overlay (File base_file, File over_file) throws IOException {
+        base = FileChannel.open(base_file.toPath(), StandardOpenOption.READ);
+        base_length = base.size();
+        over = FileChannel.open(over_file.toPath(), StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        slots = new HashMap<Long, Long>();
+        length = base_length;
+        pos = 0;
+        dirty = new DirtyRanges();
+    }
+
+    /*
+     * Function: length
+     * @return current length of the file as seen by the fd
+     */
+    public synchronized long length () {
+        return length;
+    }
+
+    /*
+     * Function: size
+     * @return bytes used on disk by the overlay
+     */
+    public synchronized long size () {
+        return (long) slots.size() * BLOCK_SIZE;
+    }
+
+    public synchronized long getFilePointer () {
+        return pos;
+    }
+
+    public synchronized void seek (long new_pos) {
+        pos = new_pos;
+    }
+
+    /*
+     * Function: readAt
+     * Reads bytes at a position without moving the file pointer
+     * 
+     * @param at - position to read from
+     * @param buf - buffer to read into
+     * @param off - offset in buf
+     * @param len - max number of bytes to read
+     * @return number of bytes read, 0 at end of file
+     */
+    public synchronized int readAt (long at, byte[] buf, int off, int len) throws IOException {
+        int total = (int) Math.max(0, Math.min(len, length - at));
+        int done = 0;
+        while (done < total) {
+            long curr = at + done;
+            long block = curr / BLOCK_SIZE;
+            int block_off = (int) (curr % BLOCK_SIZE);
+            int n = Math.min(total - done, BLOCK_SIZE - block_off);
+
+            Long slot = slots.get(block);
+            if (slot != null) {
+                readFully(over, ByteBuffer.wrap(buf, off + done, n), slot + block_off);
+            }
+            else {
+                // unwritten blocks come from the base, zeros past its end
+                int from_base = (int) Math.max(0, Math.min(n, base_length - curr));
+                if (from_base > 0) {
+                    readFully(base, ByteBuffer.wrap(buf, off + done, from_base), curr);
+                }
+                Arrays.fill(buf, off + done + from_base, off + done + n, (byte) 0);
+            }
+            done += n;
+        }
+        return done;
+    }
+
+    /*
+     * Function: read
+     * Reads from the file pointer and advances it
+     * 
+     * @param buf - buffer to read into
+     * @return number of bytes read, 0 at end of file
+     */
+    public synchronized int read (byte[] buf) throws IOException {
+        int n = readAt(pos, buf, 0, buf.length);
+        pos += n;
+        return n;
+    }
+
+    /*
+     * Function: write
+     * Writes at the file pointer and advances it, copying each block
+     * from the base the first time it is written
+     * 
+     * @param buf - contents to write
+     * @return number of bytes the overlay grew by on disk
+     */
+    public synchronized long write (byte[] buf) throws IOException {
+        long old_size = size();
+        int done = 0;
+        while (done < buf.length) {
+            long curr = pos + done;
+            long block = curr / BLOCK_SIZE;
+            int block_off = (int) (curr % BLOCK_SIZE);
+            int n = Math.min(buf.length - done, BLOCK_SIZE - block_off);
+
+            writeFully(over, ByteBuffer.wrap(buf, done, n), materialize(block) + block_off);
+            done += n;
+        }
+        dirty.add(pos, buf.length);
+        pos += buf.length;
+        length = Math.max(length, pos);
+        return size() - old_size;
+    }
+
+    /*
+     * Function: materialize
+     * Copies a block into the overlay if it isn't there yet
+     * 
+     * @param block - index of the block
+     * @return offset of the block in the overlay file
+     */
+    private long materialize (long block) throws IOException {
+        Long slot = slots.get(block);
+        if (slot != null) {
+            return slot;
+        }
+        long start = block * BLOCK_SIZE;
+        long new_slot = size();
+        int from_base = (int) Math.max(0, Math.min(BLOCK_SIZE, base_length - start));
+        transfer(base, start, from_base, over, new_slot);
+        if (from_base < BLOCK_SIZE) {
+            ByteBuffer zeros = ZEROS.duplicate();
+            zeros.limit(BLOCK_SIZE - from_base);
+            writeFully(over, zeros, new_slot + from_base);
+        }
+        slots.put(block, new_slot);
+        return new_slot;
+    }
+
+    /*
+     * Function: merge
+     * Writes the full contents seen by the fd into another file
+     * 
+     * @param dest - file to write the merged contents into
+     */
+    public synchronized void merge (FileChannel dest) throws IOException {
+        transfer(base, 0, Math.min(base_length, length), dest, 0);
+        for (Map.Entry<Long, Long> ent : slots.entrySet()) {
+            long start = ent.getKey() * BLOCK_SIZE;
+            long n = Math.min(BLOCK_SIZE, length - start);
+            if (n > 0) {
+                transfer(over, ent.getValue(), n, dest, start);
+            }
+        }
+
+        // fix up the length, holes past the base read back as zeros
+        if (dest.size() > length) {
+            dest.truncate(length);
+        }
+        else if (dest.size() < length) {
+            ByteBuffer zeros = ZEROS.duplicate();
+            zeros.limit(1);
+            writeFully(dest, zeros, length - 1);
+        }
+    }
+
+    /*
+     * Function: close
+     * Closes the base and overlay handles
+     */
+    public synchronized void close () throws IOException {
+        base.close();
+        over.close();
+    }
+
+    /*
+     * Function: transfer
+     * Copies a range of one file into another without a Java buffer
+     * 
+     * @param src - file to copy from
+     * @param src_pos - position in src to start at
+     * @param count - number of bytes to copy
+     * @param dest - file to copy into
+     * @param dest_pos - position in dest to start at
+     */
+    public static void transfer (FileChannel src, long src_pos, long count,
+            FileChannel dest, long dest_pos) throws IOException {
+        long done = 0;
+        while (done < count) {
+            dest.position(dest_pos + done);
+            long n = src.transferTo(src_pos + done, count - done, dest);
+            if (n <= 0) {
+                throw new EOFException("transfer ended at " + (src_pos + done));
+            }
+            done += n;
+        }
+    }
+
+    /*
+     * Function: readFully
+     * Fills a buffer from a file at a position
+     */
+    public static void readFully (FileChannel ch, ByteBuffer buf, long at) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, at);
+            if (n < 0) {
+                throw new EOFException("read ended at " + at);
+            }
+            at += n;
+        }
+    }
+
+    /*
+     * Function: writeFully
+     * Writes a whole buffer to a file at a position
+     */
+    public static void writeFully (FileChannel ch, ByteBuffer buf, long at) throws IOException {
+        while (buf.hasRemaining()) {
+            at += ch.write(buf, at);
+        }
+    }
+}
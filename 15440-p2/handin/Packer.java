@@ -0,0 +1,159 @@
+/**
+ * File: Packer.java
+ * Description: Framing and adaptive compression of transferred chunks
+ * Author: Joseph Jia (josephji)
+ *
+ * This file wraps each chunk sent over RMI in a one-byte frame saying
+ * whether it was compressed with Lz:
+ *
+ *     0, bytes                      sent as is
+ *     1, raw length (4 bytes), Lz block
+ *
+ * A chunk that doesn't shrink by at least an eighth is sent as is, and
+ * the packer then sends the next few chunks as is without trying, twice
+ * as many after each chunk that doesn't shrink up to MAX_BACKOFF, so
+ * media and other compressed data cost little CPU. One chunk that does
+ * shrink starts it trying every chunk again. A packer's state is shared
+ * by everything packed through it, so one is kept per stream, and each
+ * side shares one across its single-call transfers.
+ *
+ * Only chunks of up to MAX_FRAME bytes, one full window, are compressed;
+ * a bigger one is always sent as is. So unpack rejects an Lz header
+ * claiming more than MAX_FRAME instead of allocating it, and any chunk
+ * a sender packs still gets through.
+ *
+ * Peers only send frames to each other once the proxy has seen CAP_LZ in
+ * the server's capabilities; the unframed calls are left as they were
+ * for peers that don't know about frames.
+ *
+ * With metrics on, wire.raw_bytes over wire.sent_bytes is the ratio
+ * achieved, and wire.pack_cpu_ns and wire.unpack_cpu_ns the thread CPU
+ * time spent on it.
+ */
+
+// Imported Libraries
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+public class Packer {
+    public static final int CAP_LZ = 1; // capability bit for framed transfers
+    private static final byte RAW = 0;
+    private static final byte LZ = 1;
+    private static final int HEADER = 5; // frame type and raw length
+    private static final int MIN_PACK = 64; // smaller chunks aren't worth trying
+    private static final int MAX_BACKOFF = 64;
+    public static final int MAX_FRAME = Server.MAX_WINDOW * Server.CHUNK_SIZE; // biggest chunk compressed
+    private static final ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+
+    private int skip; // chunks left to send as is without trying
+    private int backoff = 1; // chunks to skip after the next one that doesn't shrink
+
+    /*
+     * Function: pack
+     * Frames a chunk, compressed if that makes it smaller
+     *
+     * @param data - chunk to send
+     * @return the frame
+     */
+    public byte[] pack (byte[] data) {
+        Metrics.add("wire.raw_bytes", data.length);
+        if (data.length < MIN_PACK || data.length > MAX_FRAME || skipping()) {
+            Metrics.count("wire.pack_skipped");
+            return raw(data);
+        }
+
+        long start = cpuTime();
+        byte[] out = new byte[HEADER + Lz.maxLength(data.length)];
+        int n = Lz.compress(data, 0, data.length, out, HEADER);
+        Metrics.add("wire.pack_cpu_ns", cpuTime() - start);
+        if (!shrunk(n, data.length)) {
+            return raw(data);
+        }
+        out[0] = LZ;
+        out[1] = (byte) (data.length >>> 24);
+        out[2] = (byte) (data.length >>> 16);
+        out[3] = (byte) (data.length >>> 8);
+        out[4] = (byte) data.length;
+        Metrics.add("wire.sent_bytes", HEADER + n);
+        return Arrays.copyOf(out, HEADER + n);
+    }
+
+    /*
+     * Function: unpack
+     * Gets the chunk back out of a frame
+     *
+     * @param frame - frame from pack, or null
+     * @return the chunk, null if frame is null
+     * @throws IOException if the frame is corrupt or claims over MAX_FRAME
+     */
+    public static byte[] unpack (byte[] frame) throws IOException {
+        if (frame == null) {
+            return null;
+        }
+        if (frame.length > 0 && frame[0] == RAW) {
+            return Arrays.copyOfRange(frame, 1, frame.length);
+        }
+        if (frame.length < HEADER || frame[0] != LZ) {
+            throw new IOException("bad frame of " + frame.length + " bytes");
+        }
+        int len = ((frame[1] & 0xff) << 24) | ((frame[2] & 0xff) << 16)
+            | ((frame[3] & 0xff) << 8) | (frame[4] & 0xff);
+        if (len < 0) {
+            throw new IOException("bad frame length " + len);
+        }
+        if (len > MAX_FRAME) {
+            throw new IOException("frame of " + len + " bytes is over the limit of " + MAX_FRAME);
+        }
+
+        long start = cpuTime();
+        byte[] data = new byte[len];
+        try {
+            Lz.decompress(frame, HEADER, frame.length - HEADER, data);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("corrupt frame: " + e.getMessage());
+        }
+        Metrics.add("wire.unpack_cpu_ns", cpuTime() - start);
+        return data;
+    }
+
+    private static byte[] raw (byte[] data) {
+        byte[] frame = new byte[1 + data.length];
+        frame[0] = RAW;
+        System.arraycopy(data, 0, frame, 1, data.length);
+        Metrics.add("wire.sent_bytes", frame.length);
+        return frame;
+    }
+
+    private synchronized boolean skipping () {
+        if (skip > 0) {
+            skip--;
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Function: shrunk
+     * Checks whether a chunk compressed well enough to send that way, and
+     * backs off from trying if it didn't
+     *
+     * @param packed_len - compressed length
+     * @param raw_len - length of the chunk
+     * @return true to send the chunk compressed
+     */
+    private synchronized boolean shrunk (int packed_len, int raw_len) {
+        if (HEADER + packed_len <= raw_len - raw_len / 8) {
+            backoff = 1;
+            return true;
+        }
+        skip = backoff;
+        backoff = Math.min(2 * backoff, MAX_BACKOFF);
+        return false;
+    }
+
+    private static long cpuTime () {
+        return Metrics.enabled ? cpu.getCurrentThreadCpuTime() : 0;
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * File: PartialFile.java
+ * Description: Tracks a cached file that is still being fetched
+ * Author: Joseph Jia (josephji)
+ *
+ * This file tracks how much of a cached version has arrived while the
+ * rest of it streams in the background. The file already has its full
+ * length on disk, so reads only need to wait for the bytes they cover.
+ * Bytes arrive in order, so one count is enough.
+ */
+
+// Imported Libraries
+import java.io.IOException;
+
+public class PartialFile {
+    public final long length;
+    private long arrived;
+    private IOException error;
+
+    public PartialFile (long l, long a) {
+        length = l;
+        arrived = a;
+    }
+
+    /*
+     * Function: advance
+     * Records that more bytes were written and wakes waiting readers
+     *
+     * @param bytes - number of bytes written after the ones already arrived
+     */
+    public synchronized void advance (long bytes) {
+        arrived += bytes;
+        notifyAll();
+    }
+
+    /*
+     * Function: fail
+     * Records that the fetch stopped, so waiting readers give up
+     *
+     * @param e - error that stopped the fetch
+     */
+    public synchronized void fail (IOException e) {
+        error = e;
+        notifyAll();
+    }
+
+    /*
+     * Function: done
+     * @return true once every byte has arrived
+     */
+    public synchronized boolean done () {
+        return arrived >= length;
+    }
+
+    /*
+     * Function: await
+     * Waits until every byte before end has arrived
+     *
+     * @param end - offset just past the last byte needed
+     */
+    public synchronized void await (long end) throws IOException {
+        end = Math.min(end, length);
+        while (arrived < end && error == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException(e.toString());
+            }
+        }
+        if (arrived < end) {
+            throw new IOException("fetch stopped at " + arrived + " of " + length + ": " + error);
+        }
+    }
+}
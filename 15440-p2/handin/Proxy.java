@@ -16,38 +16,989 @@ import java.util.*;
 import java.rmi.*;
 import java.rmi.registry.Registry;
 import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 class Proxy {
 	// Global Variables
-	public static ConcurrentHashMap<Integer, RandomAccessFile> fd_files;
-	public static ConcurrentHashMap<Integer, String> fd_paths;
-	public static int curr_fd;
+	public static FdTable fds;
 	public static String hostIP;
 	public static int port;
 	public static RMIInterface stub;
+	public static HashMap<String, String> options;
 
 	// Cache Variables
 	public static Cache cache;
 	public static int max_size;
 	public static String cache_dir;
-	public static Object cache_lock = new Object();
+	public static ConcurrentHashMap<String, CompletableFuture<File>> in_flight;
+	public static ConcurrentHashMap<String, PartialFile> filling; // versions still streaming in
+	public static boolean partial;
+	public static long block_threshold; // read opens of bigger files are cached in blocks
+	public static boolean mmap; // serve complete versions to read fds from a shared map
 
 	// Additional Constant Values
 	public static final int EIO = -5;
-	public static final int CHUNK_SIZE = 50000;
+	public static final int CHUNK_SIZE = Server.CHUNK_SIZE;
+
+	// Lease Variables
+	public static boolean use_leases;
+	public static ConcurrentHashMap<String, FileMeta> leases;
+	public static int prefetch; // leases in use renewed along with each validate
+	public static int proxy_id; // id from registerProxy, 0 without callbacks
+	public static AtomicLong invalidations = new AtomicLong(0);
+	public static Invalidator invalidator;
+
+	// Trace Variables
+	public static PrintWriter trace_log; // open/write trace for Bench replay, null if off
+
+	// Write-back Variables
+	public static WriteBehind write_behind; // null unless close returns before the upload
+
+	// Transfer Variables
+	public static int window; // chunks requested per stream read
+	public static final int MAX_WINDOW = Server.MAX_WINDOW; // most chunks the server sends per read
+	public static ExecutorService fetcher = Executors.newCachedThreadPool();
+	public static ChunkIndex chunks; // chunks of cached versions, null unless dedup is on
+	public static final int MAX_CHUNKS = 1 << 18;
+	public static boolean packed; // the server takes and sends chunks framed by Packer
+	public static Packer packer = new Packer(); // packs the chunks uploaded
+
+	/*
+	 * Function: getMeta
+	 * Gets the max version, length and type of a file on the server.
+	 * With leases on, a path with a valid lease is answered locally.
+	 * Otherwise the server is asked for a new lease, and leases that were
+	 * used and are about to run out are renewed in the same call, so a
+	 * working set of files doesn't cost a round trip per file per term.
+	 * 
+	 * @param path - server pathname of the file
+	 * @return metadata of the file, version 0 if it doesn't exist
+	 */
+	public static FileMeta getMeta (String path) throws RemoteException {
+		if (!use_leases) {
+			return stub.statFiles(new String[] {path})[0];
+		}
+		long now = System.nanoTime();
+		FileMeta meta = leases.get(path);
+		if (meta != null && now < meta.expires) {
+			meta.used = true;
+			return meta;
+		}
+
+		ArrayList<String> paths = new ArrayList<String>();
+		paths.add(path);
+		for (Map.Entry<String, FileMeta> ent : leases.entrySet()) {
+			if (paths.size() > prefetch) {
+				break;
+			}
+			FileMeta held = ent.getValue();
+			if (held.used && held.expires - now < held.term_ms * 500000 && !ent.getKey().equals(path)) {
+				paths.add(ent.getKey());
+			}
+		}
+
+		// start the clock before asking, so our leases end before the server's
+		long sent = System.nanoTime();
+		long seen = invalidations.get();
+		FileMeta[] metas = stub.validate(paths.toArray(new String[0]), proxy_id);
+		metas[0].used = true;
+
+		// a notice that arrived during the call may be for one of these leases
+		boolean fresh = (invalidations.get() == seen);
+		for (int i = 0; i < metas.length; i++) {
+			metas[i].expires = sent + metas[i].term_ms * 1000000;
+			if (metas[i].term_ms > 0 && fresh) {
+				leases.put(paths.get(i), metas[i]);
+			}
+			else {
+				leases.remove(paths.get(i));
+			}
+		}
+		return metas[0];
+	}
+
+	/*
+	 * Function: trace
+	 * Appends one line to the trace log, in the format Bench replay reads
+	 * 
+	 * @param op - open, or write for a close that made a new version
+	 * @param path - server pathname of the file
+	 * @param size - size of the file in bytes
+	 */
+	public static void trace (String op, String path, long size) {
+		if (trace_log == null) {
+			return;
+		}
+		synchronized (trace_log) {
+			trace_log.println(op + " " + path + " " + size);
+			trace_log.flush();
+		}
+	}
+
+	/*
+	 * Function: restoreCache
+	 * Creates the cache, reusing the versions the last run left in
+	 * cache_dir. The newest saved version of each path, whole or in
+	 * blocks, is checked against the server with one statFiles call and
+	 * kept if it is still current.
+	 * Every other file in cache_dir is deleted.
+	 */
+	public static void restoreCache () throws IOException {
+		new File(cache_dir).mkdirs();
+		CacheIndex index = new CacheIndex(cache_dir);
+		LinkedHashMap<String, Long> saved = index.load();
+		cache = new Cache(max_size, index, EvictionPolicy.named(options.getOrDefault("policy", "lru")));
+		String prefix = Path.of(cache_dir).normalize() + "/";
+
+		// newest saved version of each path, over the files that are intact
+		HashMap<String, Integer> newest = new HashMap<String, Integer>();
+		Iterator<Map.Entry<String, Long>> it = saved.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> ent = it.next();
+			String cache_path = ent.getKey();
+			if (Cache.isWrite(cache_path) || Cache.version(cache_path) <= 0
+				|| !cache_path.startsWith(prefix) || new File(cache_path).length() != ent.getValue()) {
+				it.remove();
+				continue;
+			}
+			newest.merge(Cache.basePath(cache_path), Cache.version(cache_path), Math::max);
+		}
+
+		if (!newest.isEmpty()) {
+			String[] dir_paths = newest.keySet().toArray(new String[0]);
+			String[] paths = new String[dir_paths.length];
+			for (int i = 0; i < dir_paths.length; i++) {
+				paths[i] = dir_paths[i].substring(prefix.length());
+			}
+			HashSet<String> current = new HashSet<String>();
+			try {
+				FileMeta[] metas = stub.statFiles(paths);
+				for (int i = 0; i < dir_paths.length; i++) {
+					if (newest.get(dir_paths[i]) == metas[i].version && !metas[i].directory) {
+						current.add(dir_paths[i] + "-" + metas[i].version);
+					}
+				}
+			} catch (RemoteException e) {
+				System.err.println(e.toString()); // start cold
+			}
+
+			// put back whole versions and blocks in saved order,
+			// so the clock hand keeps its order
+			for (String cache_path : saved.keySet()) {
+				if (current.contains(Cache.versionPath(cache_path))) {
+					cache.put(cache_path, new File(cache_path));
+				}
+			}
+		}
+
+		// delete stale versions and leftover write copies
+		Path root = Path.of(cache_dir).normalize();
+		if (Files.isDirectory(root)) {
+			ArrayList<Path> files = new ArrayList<Path>();
+			try (java.util.stream.Stream<Path> walk = Files.walk(root)) {
+				walk.filter(Files::isRegularFile).forEach(files::add);
+			}
+			for (Path p : files) {
+				String name = p.getFileName().toString();
+				if (!name.startsWith(CacheIndex.NAME) && !name.equals(WriteBehind.NAME)
+					&& !cache.containsKey(p.toString())) {
+					Files.deleteIfExists(p);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Class: Invalidator
+	 * Callback the server uses to tell this proxy a file is changing.
+	 * Dropping the lease makes the next open ask the server again, and
+	 * unused versions older than the new one are evicted right away.
+	 */
+	public static class Invalidator extends UnicastRemoteObject implements ProxyCallback {
+		public Invalidator () throws RemoteException {
+			super(0);
+		}
+
+		public void invalidate (String path, int version) {
+			invalidations.incrementAndGet();
+			leases.remove(path);
+			// a deleted file has no new version, so every unused copy is stale
+			int newest = (version == 0) ? Integer.MAX_VALUE : version;
+			cache.checkStaleVersions(Path.of(cache_dir + "/" + path).normalize() + "-" + newest);
+		}
+	}
+
+	/*
+	 * Function: fetchFile
+	 * Streams a file from the server into a local file.
+	 * 
+	 * @param path - server pathname of the file
+	 * @param raf - local file to copy the contents into
+	 * @return version of the fetched file, 0 if it doesn't exist on the server
+	 */
+	public static int fetchFile (String path, RandomAccessFile raf) throws IOException {
+		FileStream fs = openStream(path, window);
+		if (fs == null) {
+			return 0;
+		}
+		copyStream(fs, raf);
+		return fs.version;
+	}
+
+	/*
+	 * Function: copyStream
+	 * Copies an open stream into a local file.
+	 * The next window is requested in the background while the current
+	 * one is written, so the transfer is pipelined instead of one
+	 * round trip per chunk.
+	 * 
+	 * @param fs - stream header from openStream
+	 * @param raf - local file to copy the contents into
+	 */
+	public static void copyStream (FileStream fs, RandomAccessFile raf) throws IOException {
+		raf.seek(0);
+		raf.write(fs.data);
+		copyRest(fs, raf, null);
+		raf.setLength(fs.length);
+	}
+
+	/*
+	 * Function: copyRest
+	 * Copies the rest of a stream after its first window, at the file
+	 * pointer. Each read asks for twice as many chunks as the last, up to
+	 * the window, so a stream opened with a small first window for a fast
+	 * first byte still ramps up to full-sized reads.
+	 * 
+	 * @param fs - stream header from openStream
+	 * @param raf - local file, with the first window already written
+	 * @param part - arrival tracker to advance as bytes land, or null
+	 */
+	private static void copyRest (FileStream fs, RandomAccessFile raf, PartialFile part) throws IOException {
+		if (fs.reader == null) {
+			return;
+		}
+		RemoteStream reader = fs.reader;
+		long curr_pos = fs.data.length;
+		int chunks = Math.min(2 * Math.max(1, fs.data.length / CHUNK_SIZE), window);
+		try {
+			int max_bytes = chunks * CHUNK_SIZE;
+			Future<byte[]> next = fetcher.submit(() -> reader.read(max_bytes));
+			while (curr_pos < fs.length) {
+				byte[] buf = next.get();
+				if (buf == null || buf.length == 0) {
+					throw new IOException("stream ended at " + curr_pos + " of " + fs.length);
+				}
+				// request the next window before writing this one
+				if (curr_pos + buf.length < fs.length) {
+					chunks = Math.min(2 * chunks, window);
+					int ahead = chunks * CHUNK_SIZE;
+					next = fetcher.submit(() -> reader.read(ahead));
+				}
+				raf.write(buf);
+				curr_pos += buf.length;
+				if (part != null) {
+					part.advance(buf.length);
+				}
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException(e.toString());
+		} finally {
+			closeStream(fs);
+		}
+	}
+
+	/*
+	 * Function: closeStream
+	 * Closes the server side of a stream in the background
+	 * 
+	 * @param fs - stream header from openStream
+	 */
+	public static void closeStream (FileStream fs) {
+		if (fs.reader == null) {
+			return;
+		}
+		RemoteStream reader = fs.reader;
+		fetcher.submit(() -> {
+			reader.close();
+			return null;
+		});
+	}
+
+	/*
+	 * Function: negotiate
+	 * Asks the server which optional transfer features it has, and turns
+	 * on framed transfers if both sides want them. A server from before
+	 * capabilities() fails the call, and is sent everything unframed.
+	 */
+	public static void negotiate () {
+		packed = false;
+		if (!Boolean.parseBoolean(options.getOrDefault("compress", "true"))) {
+			return;
+		}
+		try {
+			packed = (stub.capabilities() & Packer.CAP_LZ) != 0;
+		} catch (RemoteException e) {
+			System.err.println("server can't frame transfers: " + e.toString());
+		}
+	}
+
+	/*
+	 * Class: UnpackedStream
+	 * Local view of a packed server stream that unframes each read, so
+	 * copyRest and closeStream don't need to know about frames. Reads run
+	 * on the fetcher, so unpacking overlaps writing the last window.
+	 */
+	private static class UnpackedStream implements RemoteStream {
+		private RemoteStream reader;
+
+		UnpackedStream (RemoteStream r) {
+			reader = r;
+		}
+
+		public byte[] read (int max_bytes) throws RemoteException {
+			byte[] frame = reader.read(max_bytes);
+			try {
+				return Packer.unpack(frame);
+			} catch (IOException e) {
+				throw new RemoteException("bad stream read", e);
+			}
+		}
+
+		public byte[] readAt (long pos, int len) throws RemoteException {
+			byte[] frame = reader.readAt(pos, len);
+			try {
+				return Packer.unpack(frame);
+			} catch (IOException e) {
+				throw new RemoteException("bad stream read", e);
+			}
+		}
+
+		public void close () throws RemoteException {
+			reader.close();
+		}
+	}
+
+	/*
+	 * Function: openStream
+	 * Opens a stream on the server, framed if the server takes frames,
+	 * and hands it back unframed
+	 * 
+	 * @param path - server pathname of the file
+	 * @param window - number of chunks to send per call
+	 * @return stream header, null if the file doesn't exist
+	 */
+	public static FileStream openStream (String path, int window) throws IOException {
+		if (!packed) {
+			return stub.openStream(path, window);
+		}
+		FileStream fs = stub.openStream(path, window, true);
+		if (fs != null) {
+			fs.data = Packer.unpack(fs.data);
+			if (fs.reader != null) {
+				fs.reader = new UnpackedStream(fs.reader);
+			}
+		}
+		return fs;
+	}
+
+	/*
+	 * Function: readRange
+	 * Reads one range of a file from the server, framed if the server
+	 * takes frames, and hands it back unframed
+	 * 
+	 * @return length, version and bytes of the range, null if the file
+	 *         doesn't exist
+	 */
+	public static FileStream readRange (String path, long pos, int len) throws IOException {
+		if (!packed) {
+			return stub.readRange(path, pos, len);
+		}
+		FileStream range = stub.readRange(path, pos, len, true);
+		if (range != null) {
+			range.data = Packer.unpack(range.data);
+		}
+		return range;
+	}
+
+	/*
+	 * Function: getChunks
+	 * Reads chunks of a version from the server, framed if the server
+	 * takes frames, and hands them back unframed
+	 * 
+	 * @return bytes of each chunk, null if the version changed
+	 */
+	public static byte[][] getChunks (String path, int version, long[] offsets, int[] lengths)
+			throws IOException {
+		if (!packed) {
+			return stub.getChunks(path, version, offsets, lengths);
+		}
+		byte[][] data = stub.getChunks(path, version, offsets, lengths, true);
+		for (int i = 0; data != null && i < data.length; i++) {
+			data[i] = Packer.unpack(data[i]);
+		}
+		return data;
+	}
+
+	/*
+	 * Function: updateRanges
+	 * Sends changed ranges to the server, framed if the server takes
+	 * frames. The delta is left as it was, so it can be sent again.
+	 * 
+	 * @return the new version, -1 if the file moved past base, -5 on error
+	 */
+	public static int updateRanges (String path, int base, FileDelta delta) throws RemoteException {
+		if (!packed) {
+			return stub.updateRanges(path, base, delta);
+		}
+		byte[][] frames = new byte[delta.data.length][];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = packer.pack(delta.data[i]);
+		}
+		return stub.updateRanges(path, base, new FileDelta(delta.length, delta.offsets, frames), true);
+	}
+
+	/*
+	 * Function: write
+	 * Writes a range to an upload session, framed if the server takes frames
+	 * 
+	 * @return true on success
+	 */
+	private static boolean write (RemoteUpload up, long pos, byte[] data) throws RemoteException {
+		return packed ? up.writePacked(pos, packer.pack(data)) : up.write(pos, data);
+	}
+
+	/*
+	 * Function: upload
+	 * Sends the written ranges of a closing fd to the server. A delta
+	 * that fits in one window goes in a single updateRanges call. A bigger
+	 * one is streamed through an upload session a window at a time, with
+	 * the next window read from the overlay while the last one is sent,
+	 * so the whole delta is never held in memory.
+	 * 
+	 * @param path - server pathname of the file
+	 * @param base - version the fd started from, 0 to apply regardless
+	 * @param ov - overlay holding the written contents
+	 * @param dirty - ranges to send
+	 * @param length - final length of the file
+	 * @return the new version, -1 if the file moved past base, -5 on error
+	 */
+	public static int upload (String path, int base, Overlay ov, DirtyRanges dirty, long length)
+			throws IOException {
+		int max_bytes = Math.max(1, window) * CHUNK_SIZE;
+		if (dirty.size() <= max_bytes) {
+			FileDelta delta = dirty.toDelta(ov, length);
+			for (byte[] data : delta.data) {
+				Metrics.add("proxy.bytes_uploaded", data.length);
+			}
+			return updateRanges(path, base, delta);
+		}
+		RemoteUpload up = stub.beginUpload(path, base);
+		if (up == null) {
+			return -5;
+		}
+		boolean sent_all = false;
+		try {
+			if (chunks != null) {
+				ArrayList<SentRange> sent = new ArrayList<SentRange>();
+				if (!sendChunks(up, ov, dirty, length, sent)) {
+					return -5;
+				}
+				sent_all = true;
+				int new_ver = up.commit(length);
+				if (new_ver > 0) {
+					// the merged version holds the chunks at the same offsets
+					for (SentRange range : sent) {
+						chunks.add(cache_dir + "/" + path + "-" + new_ver, range.hashes, range.lengths, range.start);
+					}
+				}
+				return new_ver;
+			}
+
+			Future<Boolean> sent = null;
+			for (long[] range : dirty.list(length)) {
+				for (long pos = range[0]; pos < range[1]; pos += max_bytes) {
+					byte[] buf = new byte[(int) Math.min(max_bytes, range[1] - pos)];
+					ov.readAt(pos, buf, 0, buf.length);
+					if (sent != null && !sent.get()) {
+						return -5;
+					}
+					long at = pos;
+					sent = fetcher.submit(() -> write(up, at, buf));
+					Metrics.add("proxy.bytes_uploaded", buf.length);
+				}
+			}
+			if (sent != null && !sent.get()) {
+				return -5;
+			}
+			sent_all = true;
+			return up.commit(length);
+		} catch (InterruptedException | ExecutionException e) {
+			throw new IOException(e.toString());
+		} finally {
+			if (!sent_all) {
+				fetcher.submit(() -> {
+					up.abort();
+					return null;
+				});
+			}
+		}
+	}
+
+	/*
+	 * Class: SentRange
+	 * Chunks of one dirty range sent by sendChunks
+	 */
+	private static class SentRange {
+		long start;
+		byte[][] hashes;
+		int[] lengths;
+
+		SentRange (long s, byte[][] h, int[] n) {
+			start = s;
+			hashes = h;
+			lengths = n;
+		}
+	}
+
+	/*
+	 * Function: sendChunks
+	 * Writes the dirty ranges to an upload by content-defined chunks.
+	 * Each window of chunks is offered to the server by hash first, and
+	 * only the chunks it doesn't have are sent, with neighbouring ones
+	 * sent together.
+	 * 
+	 * @param up - upload session
+	 * @param ov - overlay holding the written contents
+	 * @param dirty - ranges to send
+	 * @param length - final length of the file
+	 * @param sent - gets the chunks of each range
+	 * @return true if every chunk was written
+	 */
+	private static boolean sendChunks (RemoteUpload up, Overlay ov, DirtyRanges dirty, long length,
+			ArrayList<SentRange> sent) throws IOException {
+		int max_bytes = Math.max(1, window) * CHUNK_SIZE;
+		byte[] buf = new byte[max_bytes];
+		for (long[] range : dirty.list(length)) {
+			Chunker chunker = new Chunker();
+			for (long pos = range[0]; pos < range[1]; ) {
+				int n = (int) Math.min(buf.length, range[1] - pos);
+				ov.readAt(pos, buf, 0, n);
+				chunker.update(buf, 0, n);
+				pos += n;
+			}
+			chunker.finish();
+			byte[][] hashes = chunker.hashes();
+			int[] lengths = chunker.lengths();
+			sent.add(new SentRange(range[0], hashes, lengths));
+
+			long pos = range[0];
+			for (int i = 0; i < hashes.length; ) {
+				// one window of chunks
+				int end = i;
+				long bytes = 0;
+				while (end < hashes.length && (end == i || bytes + lengths[end] <= max_bytes)) {
+					bytes += lengths[end++];
+				}
+				long[] offsets = new long[end - i];
+				for (int k = 0; k < offsets.length; k++) {
+					offsets[k] = (k == 0) ? pos : offsets[k - 1] + lengths[i + k - 1];
+				}
+				boolean[] known = up.writeKnown(offsets, Arrays.copyOfRange(hashes, i, end));
+
+				// send each run of chunks the server lacks in one write
+				for (int k = 0; k < offsets.length; ) {
+					if (known[k]) {
+						Metrics.add("proxy.dedup_bytes_known", lengths[i + k]);
+						k++;
+						continue;
+					}
+					int run_end = k;
+					int run_bytes = 0;
+					while (run_end < offsets.length && !known[run_end]) {
+						run_bytes += lengths[i + run_end++];
+					}
+					byte[] data = new byte[run_bytes];
+					ov.readAt(offsets[k], data, 0, run_bytes);
+					if (!write(up, offsets[k], data)) {
+						return false;
+					}
+					Metrics.add("proxy.bytes_uploaded", run_bytes);
+					k = run_end;
+				}
+				pos += bytes;
+				i = end;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Interface: Fetch
+	 * Fetches a missing cache entry, returning it with 1 client added
+	 */
+	private interface Fetch {
+		File fetch () throws IOException;
+	}
+
+	/*
+	 * Function: fetchIntoCache
+	 * Gets a cached version, fetching it from the server on a miss.
+	 * If the server has moved past the version by the time of the fetch,
+	 * the newer version is returned, so check the version of the result.
+	 * 
+	 * @param path - server pathname of the file
+	 * @param dir_path - cache pathname without the version
+	 * @param version - version to get
+	 * @return the cached file, with 1 client added for the caller, null if
+	 *         the file no longer exists on the server
+	 */
+	public static File fetchIntoCache (String path, String dir_path, int version) throws IOException {
+		return singleFlight(dir_path + "-" + version, () -> fetchNew(path, dir_path, version));
+	}
+
+	/*
+	 * Function: fetchBlock
+	 * Gets a cached block of a version, fetching it from the server on a miss
+	 * 
+	 * @param path - server pathname of the file
+	 * @param block_path - cache pathname of the block
+	 * @param reader - server stream holding the version open
+	 * @param pos - offset of the block in the file
+	 * @param len - length of the block
+	 * @return the cached block, with 1 client added for the caller
+	 */
+	public static File fetchBlock (String path, String block_path, RemoteStream reader, long pos, int len)
+			throws IOException {
+		return singleFlight(block_path, () -> fetchNewBlock(path, block_path, reader, pos, len));
+	}
+
+	/*
+	 * Function: singleFlight
+	 * Gets a cache entry, running the fetch on a miss.
+	 * Concurrent misses on the same entry are coalesced: the first one
+	 * fetches it and the rest wait on its future and share the result.
+	 * Misses on different entries are fetched in parallel.
+	 * 
+	 * @param cache_path - cache pathname of the entry
+	 * @param miss - fetch to run on a miss
+	 * @return the cached file, with 1 client added for the caller, or
+	 *         whatever the fetch returned
+	 */
+	private static File singleFlight (String cache_path, Fetch miss) throws IOException {
+		while (true) {
+			File file = cache.acquire(cache_path);
+			if (file != null) {
+				return file;
+			}
+
+			CompletableFuture<File> flight = new CompletableFuture<File>();
+			CompletableFuture<File> leader = in_flight.putIfAbsent(cache_path, flight);
+			if (leader == null) {
+				try {
+					// an earlier fetch may have finished since the lookup
+					file = cache.acquire(cache_path);
+					if (file == null) {
+						file = miss.fetch();
+					}
+					flight.complete(file);
+					return file;
+				} catch (IOException e) {
+					flight.completeExceptionally(e);
+					throw e;
+				} finally {
+					in_flight.remove(cache_path, flight);
+				}
+			}
+
+			// wait for the fetch in progress, then pin its result
+			long start = Metrics.start();
+			try {
+				file = leader.get();
+			} catch (InterruptedException e) {
+				throw new IOException(e.toString());
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause().toString());
+			} finally {
+				Metrics.time("proxy.fetch_wait", start);
+			}
+			if (file == null || cache.addClient(file.getPath())) {
+				return file;
+			}
+		}
+	}
+
+	/*
+	 * Function: fetchNewBlock
+	 * Fetches one block of a version from the server and puts it in the cache.
+	 * The block is read through a stream holding the version open, so it
+	 * can still be fetched after a close replaces the version.
+	 * 
+	 * @param path - server pathname of the file
+	 * @param block_path - cache pathname of the block
+	 * @param reader - server stream holding the version open
+	 * @param pos - offset of the block in the file
+	 * @param len - length of the block
+	 * @return the cached block, with 1 client added for the caller
+	 */
+	private static File fetchNewBlock (String path, String block_path, RemoteStream reader, long pos, int len)
+			throws IOException {
+		byte[] data = reader.readAt(pos, len);
+		if (data == null || data.length != len) {
+			throw new IOException("short read of " + path + " at " + pos + " from the server");
+		}
+
+		File file = new File(block_path);
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(data);
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+		cache.put(block_path, file, true);
+		Metrics.count("cache.miss");
+		Metrics.add("proxy.bytes_fetched", len);
+		return file;
+	}
+
+	/*
+	 * Function: fetchNew
+	 * Fetches a version from the server and puts it in the cache.
+	 * In partial mode only the first chunk is fetched before returning,
+	 * and the rest streams in the background. Readers of the file have to
+	 * wait on its PartialFile in filling before reading past what arrived.
+	 * 
+	 * @param path - server pathname of the file
+	 * @param dir_path - cache pathname without the version
+	 * @param version - version the caller expects
+	 * @return the cached file, with 1 client added for the caller, null if
+	 *         the file no longer exists on the server
+	 */
+	private static File fetchNew (String path, String dir_path, int version) throws IOException {
+		if (chunks != null) {
+			FileRecipe recipe = stub.getRecipe(path);
+			if (recipe != null) {
+				return fetchChunks(path, dir_path, version, recipe);
+			}
+			// a directory, or gone; the stream tells which
+		}
+
+		FileStream fs = openStream(path, partial ? 1 : window);
+		if (fs == null) {
+			return null;
+		}
+		if (fs.version != version) {
+			// a close landed since the open looked up the version, so get
+			// the newer one through its own single-flight key
+			closeStream(fs);
+			return fetchIntoCache(path, dir_path, fs.version);
+		}
+
+		String cache_path = dir_path + "-" + version;
+		File file = new File(cache_path);
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+
+		Metrics.count("cache.miss");
+		Metrics.add("proxy.bytes_fetched", fs.length);
+
+		// copy over contents from server copy to proxy copy
+		boolean background = partial && fs.reader != null;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(fs.length);
+			raf.write(fs.data);
+			if (!background) {
+				copyRest(fs, raf, null);
+			}
+		} catch (IOException e) {
+			raf.close();
+			file.delete();
+			throw e;
+		}
+		if (!background) {
+			raf.close();
+			cache.put(cache_path, file, true);
+			return file;
+		}
+
+		// the background fetch holds its own client until it is done
+		PartialFile part = new PartialFile(fs.length, fs.data.length);
+		filling.put(cache_path, part);
+		cache.put(cache_path, file, true, false);
+		cache.addClient(cache_path);
+		fetcher.submit(() -> {
+			try {
+				copyRest(fs, raf, part);
+				cache.complete(cache_path);
+			} catch (IOException e) {
+				System.err.println("fetch " + path + ": " + e.toString());
+				part.fail(e);
+				cache.remove(cache_path);
+			} finally {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					System.err.println(e.toString());
+				}
+				filling.remove(cache_path, part);
+				cache.removeClient(cache_path, false, 0);
+			}
+		});
+		return file;
+	}
+
+	/*
+	 * Function: fetchChunks
+	 * Fetches a version by its recipe. Chunks already in the cache are
+	 * copied out of the versions they were seen in, and the rest are asked
+	 * for a window at a time. The version is indexed once it is complete,
+	 * so the next version or a copy of the file under another path only
+	 * has to fetch what differs.
+	 * 
+	 * @param path - server pathname of the file
+	 * @param dir_path - cache pathname without the version
+	 * @param version - version the caller expects
+	 * @param recipe - chunks of the server's current version
+	 * @return the cached file, with 1 client added for the caller, null if
+	 *         the file no longer exists on the server
+	 */
+	private static File fetchChunks (String path, String dir_path, int version, FileRecipe recipe)
+			throws IOException {
+		if (recipe.version != version) {
+			return fetchIntoCache(path, dir_path, recipe.version);
+		}
+
+		String cache_path = dir_path + "-" + version;
+		File file = new File(cache_path);
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		Metrics.count("cache.miss");
+
+		int max_bytes = Math.max(1, window) * CHUNK_SIZE;
+		long[] offsets = new long[recipe.hashes.length];
+		for (int i = 1; i < offsets.length; i++) {
+			offsets[i] = offsets[i - 1] + recipe.lengths[i - 1];
+		}
+		boolean current = true;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(recipe.length);
+			ArrayList<Integer> missing = new ArrayList<Integer>();
+			long missing_bytes = 0;
+			for (int i = 0; i < offsets.length && current; i++) {
+				byte[] data = chunks.read(recipe.hashes[i]);
+				if (data != null) {
+					raf.seek(offsets[i]);
+					raf.write(data);
+					Metrics.add("proxy.dedup_bytes_local", data.length);
+					continue;
+				}
+				missing.add(i);
+				missing_bytes += recipe.lengths[i];
+				if (missing_bytes + Chunker.MAX_CHUNK > max_bytes) {
+					current = fetchMissing(path, recipe, offsets, missing, raf);
+					missing.clear();
+					missing_bytes = 0;
+				}
+			}
+			if (current && !missing.isEmpty()) {
+				current = fetchMissing(path, recipe, offsets, missing, raf);
+			}
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+		if (!current) {
+			// replaced since the recipe was made, so start over from the new one
+			file.delete();
+			return fetchNew(path, dir_path, version);
+		}
+
+		chunks.add(cache_path, recipe.hashes, recipe.lengths, 0);
+		cache.put(cache_path, file, true);
+		return file;
+	}
+
+	/*
+	 * Function: fetchMissing
+	 * Fetches chunks of a recipe from the server into a local file
+	 * 
+	 * @param path - server pathname of the file
+	 * @param recipe - chunks of the version
+	 * @param offsets - offset of each chunk of the recipe
+	 * @param missing - indexes of the chunks to fetch, up to a window in all
+	 * @param raf - local file to write them into
+	 * @return false if the server no longer has the recipe's version
+	 */
+	private static boolean fetchMissing (String path, FileRecipe recipe, long[] offsets,
+			ArrayList<Integer> missing, RandomAccessFile raf) throws IOException {
+		long[] at = new long[missing.size()];
+		int[] lens = new int[missing.size()];
+		for (int k = 0; k < at.length; k++) {
+			at[k] = offsets[missing.get(k)];
+			lens[k] = recipe.lengths[missing.get(k)];
+		}
+		byte[][] data = getChunks(path, recipe.version, at, lens);
+		if (data == null) {
+			return false;
+		}
+		for (int k = 0; k < at.length; k++) {
+			raf.seek(at[k]);
+			raf.write(data[k]);
+			Metrics.add("proxy.bytes_fetched", data[k].length);
+		}
+		return true;
+	}
 
 	private static class FileHandler implements FileHandling {
 		/*
-		 * Function: getFd
-		 * This function determines the file descriptor for the next file.
-		 * Uses synchronization to ensure unique file descriptors.
+		 * Function: newWriteFd
+		 * Creates a writable fd on top of a cached version.
+		 * The fd starts with an empty overlay that reads through to the
+		 * cached version, so nothing is copied until the client writes.
+		 * The caller must have pinned the cached version with addClient.
 		 * 
-		 * @return file descriptor value
+		 * @param min_path - normalized server pathname
+		 * @param max_ver - version of the cached file
+		 * @param file - cached version to read through to
+		 * @return file descriptor
 		 */
-		public synchronized int getFd() {
-			int fd = curr_fd;
-			curr_fd ++;
+		private int newWriteFd (String min_path, int max_ver, File file) throws IOException {
+			// the overlay reads the base directly, so all of it has to be here
+			PartialFile part = filling.get(file.getPath());
+			if (part != null) {
+				part.await(part.length);
+			}
+
+			String base_path = min_path + "-" + max_ver;
+			FdState st = new FdState(min_path, max_ver, cache_dir + "/" + base_path);
+			int fd = fds.add(st);
+			try {
+				st.over_path = st.cache_path + "-w" + fd;
+				File fd_file = new File(st.over_path);
+				if (fd_file.getParentFile() != null) {
+					fd_file.getParentFile().mkdirs();
+				}
+				fd_file.createNewFile();
+				fd_file.setReadable(true, false);
+				fd_file.setWritable(true, false);
+				st.overlay = new Overlay(file, fd_file);
+				cache.put(st.over_path, fd_file, true);
+			} catch (IOException e) {
+				fds.remove(fd);
+				throw e;
+			}
 			return fd;
 		}
 
@@ -61,12 +1012,10 @@ class Proxy {
 		 * @return file descriptor on success; error value on failure
 		 */
 		public int open (String path, OpenOption o) {
-			int fd, buf_size, max_ver;
-			long length, curr_pos;
-			File file, fd_file;
-			String fd_path, cache_path, min_path, dir_path;
-			RandomAccessFile raf, fd_raf, tmp_raf;
-			byte[] buf;
+			int max_ver;
+			FileMeta meta;
+			File file;
+			String cache_path, min_path, dir_path;
 
 			min_path = Path.of(path).normalize().toString();
 			dir_path = Path.of(cache_dir + "/" + path).normalize().toString();
@@ -78,7 +1027,14 @@ class Proxy {
 
 			// get max version
 			try {
-				max_ver = stub.serverExists(min_path);
+				meta = getMeta(min_path);
+				max_ver = meta.version;
+				if (write_behind != null && write_behind.version(min_path) > max_ver) {
+					max_ver = write_behind.version(min_path); // our write isn't on the server yet
+				}
+				if (max_ver != 0) {
+					trace("open", min_path, meta.length);
+				}
 			} catch (RemoteException e) {
 				System.err.println(e.toString());
 				return EIO;
@@ -93,84 +1049,23 @@ class Proxy {
 			switch (o) {
 				case CREATE:
 					try {
-						synchronized (cache_lock) {
-							// check if file exists on the cache already
-							if (cache.containsKey(cache_path)) {
-								file = cache.get(cache_path);
-								tmp_raf = new RandomAccessFile(file, "rw");
+						// check if file exists on the cache already
+						file = cache.acquire(cache_path);
+						if (file == null) {
+							// check if file exists on server
+							if (max_ver == 0) {
+								stub.createFile(min_path);
+								max_ver++;
 							}
-							else {
-								// check if file exists on server
-								if (max_ver == 0) {
-									stub.createFile(min_path);
-									max_ver++;
-								}
-
-								// check if file exists on proxy
-								cache_path = dir_path + "-" + max_ver;
-								file = new File(cache_path);
-								if (!file.exists()) {
-									// create parent directories if they exist
-									if (file.getParentFile() != null) {
-										file.getParentFile().mkdirs();
-									}
-									file.createNewFile();
-								}
-
-								// copy over contents from server copy to proxy copy
-								length = stub.getFileLength(min_path);
-								curr_pos = 0;
-								tmp_raf = new RandomAccessFile(file, "rw");
-								while (curr_pos < length) {
-									buf = stub.getFileInfo(min_path, curr_pos);
-									tmp_raf.seek(curr_pos);
-									tmp_raf.write(buf);
-									curr_pos += buf.length;
-								}
-								cache.put(cache_path, file);
+							file = fetchIntoCache(min_path, dir_path, max_ver);
+							if (file == null) {
+								return Errors.ENOENT;
 							}
+							max_ver = Cache.version(file.getPath());
 						}
 
-						// create fd copy
-						fd = getFd();
-						min_path = min_path + "-" + max_ver;
-						fd_path = cache_dir + "/" + min_path + "-w" + fd;
-						System.err.println(fd_path);
-						fd_file = new File(fd_path);
-						if (fd_file.getParentFile() != null) {
-							fd_file.getParentFile().mkdirs();
-						}
-						fd_file.createNewFile();
-						fd_file.setReadable(true, false);
-						fd_file.setWritable(true, false);
-
-						// copy over contents from proxy copy to fd copy
-						fd_raf = new RandomAccessFile(fd_file, "rw");
-						length = tmp_raf.length();
-						curr_pos = 0;
-						tmp_raf.seek(0);
-						while (curr_pos < length) {
-							if (length - curr_pos > CHUNK_SIZE) {
-								buf_size = CHUNK_SIZE;
-							}
-							else {
-								buf_size = (int)(length - curr_pos);
-							}
-							buf = new byte[buf_size];
-							tmp_raf.seek(curr_pos);
-							tmp_raf.read(buf);
-							fd_raf.seek(curr_pos);
-							fd_raf.write(buf);
-							curr_pos += buf_size;
-						}
-						fd_raf.seek(0);
-
-						// update all hash maps
-						fd_paths.put(fd, min_path);
-						fd_files.put(fd, fd_raf);
-						cache.put(fd_path, fd_file);
-						cache.addClient(fd_path);
-						return fd;
+						// create the copy-on-write fd
+						return newWriteFd(min_path, max_ver, file);
 					} catch (IOException e) {
 						System.err.println("open (create): " + e.toString());
 						return EIO;
@@ -178,224 +1073,103 @@ class Proxy {
 				case CREATE_NEW:
 					try {
 						// check if file exists on the cache already
-						synchronized (cache_lock) {
-							if (cache.containsKey(cache_path)) {
-								return Errors.EEXIST;
-							}
-							// file doesn't exist in the cache
-							else {
-								// check if file exists on server
-								if (max_ver != 0) {
-									return Errors.EEXIST;
-								}
-
-								// check if file exists on proxy
-								cache_path = dir_path + "-1";
-								file = new File(cache_path);
-								if (file.exists()) {
-									return Errors.EEXIST;
-								}
-								stub.createFile(path);
-								max_ver++;
-								// create parent directories if they exist
-								if (file.getParentFile() != null) {
-									file.getParentFile().mkdirs();
-								}
-								file.createNewFile();
-
-								// copy over contents from server copy to proxy copy
-								length = stub.getFileLength(path);
-								curr_pos = 0;
-								tmp_raf = new RandomAccessFile(file, "rw");
-								while (curr_pos < length) {
-									buf = stub.getFileInfo(path, curr_pos);
-									tmp_raf.seek(curr_pos);
-									tmp_raf.write(buf);
-									curr_pos += buf.length;
-								}
-
-								cache.put(cache_path, file);
-							}
+						if (cache.containsKey(cache_path)) {
+							return Errors.EEXIST;
+						}
+						// check if file exists on server
+						if (max_ver != 0) {
+							return Errors.EEXIST;
 						}
 
-						// create fd copy
-						fd = getFd();
-						min_path = min_path + "-" + max_ver;
-						fd_path = cache_dir + "/" + min_path + "-w" + fd;
-						fd_file = new File(fd_path);
-						if (fd_file.getParentFile() != null) {
-							fd_file.getParentFile().mkdirs();
+						// check if file exists on proxy
+						cache_path = dir_path + "-1";
+						if (new File(cache_path).exists()) {
+							return Errors.EEXIST;
 						}
-						fd_file.createNewFile();
-						fd_file.setReadable(true, false);
-						fd_file.setWritable(true, false);
-
-						// copy over contents from proxy copy to fd copy
-						fd_raf = new RandomAccessFile(fd_file, "rw");
-						length = tmp_raf.length();
-						curr_pos = 0;
-						tmp_raf.seek(0);
-						while (curr_pos < length) {
-							if (length - curr_pos > CHUNK_SIZE) {
-								buf_size = CHUNK_SIZE;
-							}
-							else {
-								buf_size = (int)(length - curr_pos);
-							}
-							buf = new byte[buf_size];
-							tmp_raf.seek(curr_pos);
-							tmp_raf.read(buf);
-							fd_raf.seek(curr_pos);
-							fd_raf.write(buf);
-							curr_pos += buf_size;
+						stub.createFile(path);
+						max_ver++;
+						file = fetchIntoCache(min_path, dir_path, max_ver);
+						if (file == null) {
+							return Errors.ENOENT;
 						}
-						fd_raf.seek(0);
-
-						// update all hash maps
-						fd_paths.put(fd, min_path);
-						fd_files.put(fd, fd_raf);
-						cache.put(fd_path, fd_file);
-						cache.addClient(fd_path);
-						return fd;
+						max_ver = Cache.version(file.getPath());
+
+						// create the copy-on-write fd
+						return newWriteFd(min_path, max_ver, file);
 					} catch (IOException e) {
 						System.err.println("open (create_new): " + e.toString());
 						return EIO;
 					}
 				case READ:
 					try{
-						// check if file exists on the cache already
-						synchronized (cache_lock) {
-							if (cache.containsKey(cache_path)) {
-								file = cache.get(cache_path);
+						// check if file exists on server
+						if (max_ver == 0) {
+							return Errors.ENOENT;
+						}
+
+						// cache big files in blocks, unless the whole version is here.
+						// The server holds the version open for the fd, so blocks not
+						// cached yet can be read after a close replaces it.
+						if (!meta.directory && meta.length > block_threshold
+							&& !cache.containsKey(cache_path)) {
+							FileStream fs = openStream(min_path, 0);
+							if (fs == null) {
+								return Errors.ENOENT;
 							}
-							else {
-								// check if file exists on server
-								if (max_ver == 0) {
-									return Errors.ENOENT;
-								}
+							if (fs.reader != null) {
+								String version_path = dir_path + "-" + fs.version;
+								FdState st = new FdState(min_path, fs.version, version_path);
+								st.blocks = new BlockFile(min_path, version_path, fs.length, fs.reader);
+								return fds.add(st);
+							}
+							// shrunk to nothing since the lookup; read it whole
+						}
+						file = fetchIntoCache(min_path, dir_path, max_ver);
+						if (file == null) {
+							return Errors.ENOENT;
+						}
 
-								// check if file exists on proxy
-								file = new File(cache_path);
-								if (!file.exists()) {
-									// create parent directories if they exist
-									if (file.getParentFile() != null) {
-										file.getParentFile().mkdirs();
+						FdState st = new FdState(min_path, Cache.version(file.getPath()), file.getPath());
+						try {
+							if (!file.isDirectory()) {
+								st.fill = filling.get(file.getPath());
+								if (mmap && st.fill == null && file.length() <= Integer.MAX_VALUE) {
+									try {
+										st.map = MappedFile.open(file);
+									} catch (IOException e) {
+										System.err.println("open (read): " + e.toString()); // out of maps
 									}
-									// create the file
-									file.createNewFile();
 								}
-
-								// copy over contents from server copy to proxy copy
-								length = stub.getFileLength(path);
-								curr_pos = 0;
-								tmp_raf = new RandomAccessFile(file, "rw");
-								while (curr_pos < length) {
-									buf = stub.getFileInfo(path, curr_pos);
-									// System.err.printf("open (read): buf size [%d] and curr_pos [%d]\n", buf.length, curr_pos);
-									tmp_raf.seek(curr_pos);
-									tmp_raf.write(buf);
-									curr_pos += buf.length;
+								if (st.map == null) {
+									st.raf = new RandomAccessFile(file, "r");
 								}
-								cache.put(cache_path, file);
 							}
-							cache.addClient(cache_path);
-						}
-
-						fd = getFd();
-						fd_paths.put(fd, cache_path);
-
-						if(!file.isDirectory()) {
-							fd_raf = new RandomAccessFile(file, "r");
-							fd_files.put(fd, fd_raf);
+						} catch (IOException e) {
+							cache.removeClient(file.getPath(), false, 0);
+							throw e;
 						}
-						return fd;
+						return fds.add(st);
 					} catch (IOException e) {
 						System.err.println("open (read): " + e.toString());
 						return EIO;
 					}
 				case WRITE:
 				try{
-					// check if file exists on the cache already
-					synchronized (cache_lock) {
-						if (cache.containsKey(cache_path)) {
-							file = cache.get(cache_path);
-
-							// update file from server
-							tmp_raf = new RandomAccessFile(file, "rw");
-						}
-						else {
-							// check if file exists on server
-							if (max_ver == 0) {
-								return Errors.ENOENT;
-							}
-
-							// check if file exists on proxy
-							file = new File(cache_path);
-							if (file.isDirectory()) {
-								return Errors.EISDIR;
-							}
-							if (!file.exists()) {
-								// create parent directories if they exist
-								if (file.getParentFile() != null) {
-									file.getParentFile().mkdirs();
-								}
-								file.createNewFile();
-							}
-
-							// copy over contents from server copy to proxy copy
-							length = stub.getFileLength(path);
-							curr_pos = 0;
-							tmp_raf = new RandomAccessFile(file, "rw");
-							while (curr_pos < length) {
-								buf = stub.getFileInfo(path, curr_pos);
-								tmp_raf.seek(curr_pos);
-								tmp_raf.write(buf);
-								curr_pos += buf.length;
-							}
-							cache.put(cache_path, file);
-						}
+					// check if file exists on server
+					if (max_ver == 0) {
+						return Errors.ENOENT;
 					}
-
-					// create fd copy
-					fd = getFd();
-					min_path = min_path + "-" + max_ver;
-					fd_path = cache_dir + "/" + min_path + "-w" + fd;
-					System.err.println(fd_path);
-					fd_file = new File(fd_path);
-					if (fd_file.getParentFile() != null) {
-						fd_file.getParentFile().mkdirs();
+					if (meta.directory) {
+						return Errors.EISDIR;
 					}
-					fd_file.createNewFile();
-					fd_file.setReadable(true, false);
-					fd_file.setWritable(true, false);
-
-					// copy over contents from proxy copy to fd copy
-					fd_raf = new RandomAccessFile(fd_file, "rw");
-					length = tmp_raf.length();
-					curr_pos = 0;
-					tmp_raf.seek(0);
-					while (curr_pos < length) {
-						if (length - curr_pos > CHUNK_SIZE) {
-							buf_size = CHUNK_SIZE;
-						}
-						else {
-							buf_size = (int)(length - curr_pos);
-						}
-						buf = new byte[buf_size];
-						tmp_raf.seek(curr_pos);
-						tmp_raf.read(buf);
-						fd_raf.seek(curr_pos);
-						fd_raf.write(buf);
-						curr_pos += buf_size;
+					file = fetchIntoCache(min_path, dir_path, max_ver);
+					if (file == null) {
+						return Errors.ENOENT;
 					}
-					fd_raf.seek(0);
-
-					// update all hash maps
-					fd_paths.put(fd, min_path);
-					fd_files.put(fd, fd_raf);
-					cache.put(fd_path, fd_file);
-					cache.addClient(fd_path);
-					return fd;
+					max_ver = Cache.version(file.getPath());
+
+					// create the copy-on-write fd
+					return newWriteFd(min_path, max_ver, file);
 				} catch (IOException e) {
 					System.err.println("open (write): " + e.toString());
 					return EIO;
@@ -414,75 +1188,91 @@ class Proxy {
 		 * @return 0 on success, error value on failure
 		 */
 		public int close (int fd) {
-			String base_path = fd_paths.get(fd);
-			String fd_path;
-
-			if (base_path.startsWith(cache_dir)) { // read only fd case
-				fd_files.remove(fd);
-				fd_paths.remove(fd);
-				cache.get(base_path);
-				cache.removeClient(base_path, false, fd);
-				cache.checkStaleVersions(base_path);
-				return 0;
-			}
-
-			fd_path = cache_dir + "/" + base_path + "-w" + fd;
-			int old_ver = Integer.parseInt(base_path.substring(base_path.lastIndexOf("-")+1));
-			int new_ver = old_ver + 1;
-			String old_path = cache_dir + "/" + base_path.substring(0, base_path.lastIndexOf("-")+1) + old_ver;
-			String cache_path = cache_dir + "/" + base_path.substring(0, base_path.lastIndexOf("-")+1) + new_ver;
-			String server_path = base_path.substring(0, base_path.lastIndexOf("-"));
-
-			File file = new File(fd_path);
-			if (!file.exists()) {
-				return Errors.ENOENT;
+			FdState st = fds.get(fd);
+			if (st == null) {
+				return Errors.EBADF;
 			}
 
-			if(file.isDirectory()) {
-				fd_paths.remove(fd);
+			if (st.over_path == null) { // read only fd case
+				fds.remove(fd);
+				if (st.blocks != null) {
+					st.blocks.close(); // blocks are only pinned during reads
+					return 0;
+				}
+				if (st.raf != null) {
+					try {
+						st.raf.close();
+					} catch (IOException e) {
+						System.err.println("close: " + e.toString());
+					}
+				}
+				cache.get(st.cache_path);
+				cache.removeClient(st.cache_path, false, fd);
+				cache.checkStaleVersions(st.cache_path);
 				return 0;
 			}
-			try {
-				RandomAccessFile close_raf = fd_files.get(fd);
-				if (file.canWrite()) {
-					File cache_file;
-					cache_file = new File(cache_path);
-					cache_file.createNewFile();
-					cache.checkStaleVersions(cache_path);
-					cache.put(cache_path, cache_file);
-					RandomAccessFile raf = new RandomAccessFile(cache_file, "rw");
 
-					long length = close_raf.length();
-					long old_length = raf.length();
-					long curr_pos = 0;
-					int buf_size;
-					while (curr_pos < length) {
-						if (length - curr_pos > CHUNK_SIZE) {
-							buf_size = CHUNK_SIZE;
+			try {
+				Overlay ov = st.overlay;
+				File cache_file = null;
+				String cache_path = null;
+				boolean behind = false; // left for the uploader in write-behind mode
+				long length = 0;
+				if (!ov.dirty.isEmpty()) {
+					length = ov.length();
+					int new_ver;
+					if (write_behind != null) {
+						// install as the version the server should give it,
+						// skipping past any version already on disk
+						behind = true;
+						new_ver = st.version + 1;
+						while (!new File(cache_dir + "/" + st.server_path + "-" + new_ver).createNewFile()) {
+							new_ver++;
 						}
-						else {
-							buf_size = (int)(length - curr_pos);
+					}
+					else {
+						// send only the changed ranges to the server
+						new_ver = upload(st.server_path, st.version, ov, ov.dirty, length);
+						if (new_ver == -1) {
+							// server copy changed since open, so overwrite it with ours
+							DirtyRanges all = new DirtyRanges();
+							all.add(0, length);
+							new_ver = upload(st.server_path, 0, ov, all, length);
+						}
+						if (new_ver < 0) {
+							System.err.println("close: update failed for " + st.server_path);
+							return EIO;
 						}
-
-						byte[] buf = new byte[buf_size];
-						raf.seek(curr_pos);
-						raf.write(buf); // clear cache version
-
-						close_raf.seek(curr_pos);
-						close_raf.read(buf);
-						stub.updateFile(server_path, buf, curr_pos); // update server
-						raf.seek(curr_pos);
-						raf.write(buf); // update cache version
-						curr_pos += buf_size;
 					}
-					synchronized (cache_lock) {
-						cache.curr_size += (length - old_length);
+					leases.remove(st.server_path); // our lease is for the old version
+					trace("write", st.server_path, length);
+					Metrics.add("proxy.bytes_written_back", ov.dirty.size());
+
+					// merge the overlay with the base into the new cached version
+					cache_path = cache_dir + "/" + st.server_path + "-" + new_ver;
+					cache_file = new File(cache_path);
+					RandomAccessFile raf = new RandomAccessFile(cache_file, "rw");
+					ov.merge(raf.getChannel());
+					raf.close();
+				}
+				ov.close();
+				cache.removeClient(st.cache_path, true, fd); // drop the overlay
+				cache.removeClient(st.cache_path, false, fd); // unpin the base
+				fds.remove(fd); // the overlay's name has the fd, so free it last
+				if (cache_file != null) {
+					// a version waiting for upload stays pinned until it's sent
+					cache.put(cache_path, cache_file, behind);
+					if (behind) {
+						try {
+							write_behind.submit(st.server_path, st.version, Cache.version(cache_path), cache_path,
+								ov.dirty, length);
+						} catch (IOException e) {
+							cache.removeClient(cache_path, false, 0);
+							cache.remove(cache_path);
+							throw e;
+						}
 					}
 				}
-				close_raf.close();
-				cache.removeClient(old_path, true, fd);
-				fd_files.remove(fd);
-				fd_paths.remove(fd);
 				return 0;
 			} catch (IOException e) {
 				System.err.println("close: " + e.toString());
@@ -502,30 +1292,16 @@ class Proxy {
 			if (buf == null) {
 				return Errors.EBADF;
 			}
-			if (!fd_paths.containsKey(fd)) {
+			FdState st = fds.get(fd);
+			if (st == null) {
 				return Errors.EBADF;
 			}
-
-			String fd_path = cache_dir + "/" + fd_paths.get(fd) + "-w" + fd;
-			File file = new File(fd_path);
-			try {
-				if (file.isDirectory()) {
-					return Errors.EISDIR;
-				}
-				if (!file.exists()) {
-					return Errors.EBADF;
-				}
-				if (!file.canWrite()) {
-					return Errors.EBADF;
-				}
-			} catch (SecurityException s) {
-				System.err.println("write: " + s.toString());
-				return Errors.EBADF;
+			if (st.overlay == null) {
+				return st.isDirectory() ? Errors.EISDIR : Errors.EBADF;
 			}
 
-			RandomAccessFile write_raf = fd_files.get(fd);
 			try {
-				write_raf.write(buf);
+				cache.addSize(st.over_path, st.overlay.write(buf)); // only new overlay blocks use space
 				return (long) buf.length;
 			} catch (IOException e) {
 				System.err.println("write: " + e.toString());
@@ -542,35 +1318,44 @@ class Proxy {
 		 * @return number of bytes read into buf
 		 */
 		public long read (int fd, byte[] buf) {
-			if (!fd_paths.containsKey(fd)) {
+			FdState st = fds.get(fd);
+			if (st == null) {
 				return Errors.EBADF;
 			}
-			String fd_path = fd_paths.get(fd);
+			if (st.map != null) {
+				return st.map.read(buf);
+			}
 
-			// check if the fd corresponds to a read-only fd
-			if (!fd_path.startsWith(cache_dir)) {
-				fd_path = cache_dir + "/" + fd_paths.get(fd) + "-w" + fd;
+			if (st.blocks != null) {
+				try {
+					return st.blocks.read(buf);
+				} catch (IOException e) {
+					System.err.println("read: " + e.toString());
+					return EIO;
+				}
 			}
 
-			File file = new File(fd_path);
+			// what the fd reads from was set up at open, so there is
+			// nothing to check on the file itself
 			try {
-				if (file.isDirectory()) {
-					return Errors.EISDIR;
+				if (st.overlay != null) {
+					return st.overlay.read(buf);
 				}
-				if (!file.exists()) {
-					return Errors.ENOENT;
+				RandomAccessFile raf = st.raf;
+				if (raf == null) {
+					return Errors.EISDIR; // only directories have neither
 				}
-				if (!file.canRead()) {
-					return Errors.EBADF;
+				PartialFile part = st.fill;
+				if (part != null) {
+					// wait for the bytes this read covers to arrive
+					long start = Metrics.start();
+					part.await(raf.getFilePointer() + buf.length);
+					Metrics.time("proxy.fill_wait", start);
+					if (part.done()) {
+						st.fill = null;
+					}
 				}
-			} catch (SecurityException s) {
-				System.err.println("read: " + s.toString());
-				return Errors.EBADF;
-			}
-
-			RandomAccessFile read_raf = fd_files.get(fd);
-			try {
-				long bytes_read = read_raf.read(buf);
+				long bytes_read = raf.read(buf);
 				if (bytes_read == -1) {
 					return 0;
 				}
@@ -591,56 +1376,82 @@ class Proxy {
 		 * @return new file pointer position
 		 */
 		public long lseek (int fd, long pos, LseekOption o) {
-			if (!fd_files.containsKey(fd)) {
+			FdState st = fds.get(fd);
+			if (st == null || st.isDirectory()) {
 				return Errors.EBADF;
 			}
 
-			String fd_path = fd_paths.get(fd);
-			if (!fd_path.startsWith(cache_dir)) {
-				fd_path = cache_dir + "/" + fd_paths.get(fd) + "-w" + fd;
+			MappedFile.Reader map = st.map;
+			if (map != null) {
+				long new_pos = seekPos(map.getFilePointer(), map.length(), pos, o);
+				if (new_pos >= 0) {
+					map.seek(new_pos);
+				}
+				return new_pos;
 			}
 
-			File file = new File(fd_path);
-			if (file.isDirectory()) {
-				return Errors.EBADF;
-			}
-			if (!file.exists()) {
-				return Errors.EBADF;
+			BlockFile blocks = st.blocks;
+			if (blocks != null) {
+				long new_pos = seekPos(blocks.getFilePointer(), blocks.length(), pos, o);
+				if (new_pos >= 0) {
+					blocks.seek(new_pos);
+				}
+				return new_pos;
 			}
 
-			RandomAccessFile lseek_raf = fd_files.get(fd);
+			Overlay ov = st.overlay;
+			RandomAccessFile lseek_raf = st.raf;
 			try {
-				long new_pos;
-				switch (o) {
-					case FROM_CURRENT:
-						new_pos = lseek_raf.getFilePointer() + pos;
-						if (new_pos < 0) {
-							return Errors.EINVAL;
-						}
-						lseek_raf.seek(new_pos);
-						return new_pos; 
-					case FROM_END:
-						new_pos = lseek_raf.length() + pos;
-						if (new_pos < 0) {
-							return Errors.EINVAL;
-						}
-						lseek_raf.seek(new_pos);
-						return new_pos;
-					case FROM_START:
-						if (pos < 0) {
-							return Errors.EINVAL;
-						}
-						lseek_raf.seek(pos);
-						return pos;
-					default:
-						return Errors.EINVAL;
+				long curr_pos = (ov != null) ? ov.getFilePointer() : lseek_raf.getFilePointer();
+				long length = (ov != null) ? ov.length() : lseek_raf.length();
+				long new_pos = seekPos(curr_pos, length, pos, o);
+				if (new_pos < 0) {
+					return new_pos;
+				}
+				if (ov != null) {
+					ov.seek(new_pos);
 				}
+				else {
+					lseek_raf.seek(new_pos);
+				}
+				return new_pos;
 			} catch (IOException e) {
 				System.err.println("lseek: " + e.toString());
 				return EIO;
 			}
 		}
 
+		/*
+		 * Function: seekPos
+		 * Works out where an lseek moves the file pointer
+		 * 
+		 * @param curr_pos - current file pointer
+		 * @param length - length of the file
+		 * @param pos - file pointer offset
+		 * @param o - where to offset from
+		 * @return new file pointer position, EINVAL if it would be negative
+		 */
+		private long seekPos (long curr_pos, long length, long pos, LseekOption o) {
+			long new_pos;
+			switch (o) {
+				case FROM_CURRENT:
+					new_pos = curr_pos + pos;
+					break;
+				case FROM_END:
+					new_pos = length + pos;
+					break;
+				case FROM_START:
+					new_pos = pos;
+					break;
+				default:
+					return Errors.EINVAL;
+			}
+			if (new_pos < 0) {
+				return Errors.EINVAL;
+			}
+			return new_pos;
+		}
+
 		/*
 		 * Function: unlink
 		 * This function implements the file unlink function.
@@ -655,9 +1466,13 @@ class Proxy {
 			if (file.isDirectory() && file.list().length != 0) {
 				return Errors.ENOTEMPTY;
 			}
+			if (write_behind != null) {
+				write_behind.await(min_path); // a queued upload would bring it back
+			}
 			try {
 				// need to check to make sure it exists on the server side
 				int success = stub.deleteFile(min_path);
+				leases.remove(min_path);
 				if (success != 0) {
 					return Errors.ENOENT;
 				}
@@ -673,8 +1488,73 @@ class Proxy {
 		}
 	}
 	
-	private static class FileHandlingFactory implements FileHandlingMaking {
+	/*
+	 * Class: TimedHandler
+	 * Wraps a client's FileHandler to record the latency of each call,
+	 * and count the ones that return an error. Only used with metrics on.
+	 */
+	private static class TimedHandler implements FileHandling {
+		private FileHandling handler;
+
+		public TimedHandler (FileHandling h) {
+			handler = h;
+		}
+
+		/*
+		 * Function: done
+		 * Records the latency of a call and counts it if it failed
+		 * 
+		 * @param op - name of the call
+		 * @param start - value returned by Metrics.start
+		 * @param ret - return value of the call
+		 * @return ret
+		 */
+		private long done (String op, long start, long ret) {
+			Metrics.time("proxy." + op, start);
+			if (ret < 0) {
+				Metrics.count("proxy." + op + ".errors");
+			}
+			return ret;
+		}
+
+		public int open (String path, OpenOption o) {
+			return (int) done("open", Metrics.start(), handler.open(path, o));
+		}
+
+		public int close (int fd) {
+			return (int) done("close", Metrics.start(), handler.close(fd));
+		}
+
+		public long write (int fd, byte[] buf) {
+			long ret = done("write", Metrics.start(), handler.write(fd, buf));
+			Metrics.add("proxy.bytes_written", Math.max(0, ret));
+			return ret;
+		}
+
+		public long read (int fd, byte[] buf) {
+			long ret = done("read", Metrics.start(), handler.read(fd, buf));
+			Metrics.add("proxy.bytes_read", Math.max(0, ret));
+			return ret;
+		}
+
+		public long lseek (int fd, long pos, LseekOption o) {
+			return done("lseek", Metrics.start(), handler.lseek(fd, pos, o));
+		}
+
+		public int unlink (String path) {
+			return (int) done("unlink", Metrics.start(), handler.unlink(path));
+		}
+
+		public void clientdone () {
+			handler.clientdone();
+		}
+	}
+	
+	static class FileHandlingFactory implements FileHandlingMaking {
 		public FileHandling newclient () {
+			if (Metrics.enabled) {
+				return new TimedHandler(new FileHandler());
+			}
 			return new FileHandler();
 		}
 	}
@@ -687,21 +1567,55 @@ class Proxy {
 	 * @param args[1] - port value
 	 * @param args[2] - cache directory
 	 * @param args[3] - maximum cache size
+	 * @param args[4...] - optional settings given as name=value
+	 *                     window - chunks requested per stream read (default 16, at most 64)
+	 *                     leases - true to serve opens from server leases (default false)
+	 *                     callbacks - true to register for invalidation notices (default false)
+	 *                     prefetch - leases in use renewed with each validate (default 8)
+	 *                     partial - true to return from a read open before the whole file arrives (default true)
+	 *                     block_size - bytes per cached block of a big file (default 1 MB)
+	 *                     block_threshold - read opens of files bigger than this are cached
+	 *                                       in blocks (default a quarter of the cache size)
+	 *                     policy - eviction policy: lru, gdsf or tinylfu (default lru)
+	 *                     mmap - true to read complete cached versions through a shared
+	 *                            memory map (default true)
+	 *                     trace - file to append an open/write trace to, for Bench replay
+	 *                     write_behind - true to return from close once the write is journaled
+	 *                                    locally, and upload it in the background (default false)
+	 *                     dedup - true to fetch and upload by content-defined chunks, sending
+	 *                             only the chunks the other side lacks (default false)
+	 *                     compress - true to compress transfers with a server that supports
+	 *                                it (default true)
+	 *                     metrics - seconds between metric dumps to stderr, 0 for JMX only
+	 *                               (default off)
 	 */
 	public static void main (String[] args) throws IOException {
-		fd_files = new ConcurrentHashMap<Integer, RandomAccessFile>();
-		fd_paths = new ConcurrentHashMap<Integer, String>();
-
 		hostIP = args[0];
 		port = Integer.parseInt(args[1]);
 		cache_dir = args[2];
 		max_size = Integer.parseInt(args[3]);
-		cache = new Cache(max_size);
-		curr_fd = 3;
+		options = new HashMap<String, String>();
+		for (int i = 4; i < args.length; i++) {
+			String[] opt = args[i].split("=", 2);
+			if (opt.length == 2) {
+				options.put(opt[0], opt[1]);
+			}
+		}
+		setup();
 
 		try {
 			Registry registry = LocateRegistry.getRegistry(hostIP, port);
 			stub = (RMIInterface) registry.lookup("RMIInterface");
+			stub = Metrics.timed(stub, RMIInterface.class, "rpc.");
+			negotiate();
+			if (write_behind != null) {
+				write_behind.replay();
+			}
+			restoreCache();
+			if (Boolean.parseBoolean(options.getOrDefault("callbacks", "false"))) {
+				invalidator = new Invalidator();
+				proxy_id = stub.registerProxy(invalidator);
+			}
 		} catch (RemoteException e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -711,4 +1625,38 @@ class Proxy {
 		}
 		(new RPCreceiver(new FileHandlingFactory())).run();
 	}
-}
\ No newline at end of file
+
+	/*
+	 * Function: setup
+	 * Creates the fd tables and applies the options. Expects cache_dir,
+	 * max_size and options to be set. The stub and the cache are left to
+	 * the caller, so Bench can run the proxy against an in-process server.
+	 */
+	public static void setup () throws IOException {
+		fds = new FdTable(3);
+		// the server sends no more per read
+		window = Math.min(Integer.parseInt(options.getOrDefault("window", "16")), MAX_WINDOW);
+		use_leases = Boolean.parseBoolean(options.getOrDefault("leases", "false"));
+		leases = new ConcurrentHashMap<String, FileMeta>();
+		prefetch = Integer.parseInt(options.getOrDefault("prefetch", "8"));
+		in_flight = new ConcurrentHashMap<String, CompletableFuture<File>>();
+		filling = new ConcurrentHashMap<String, PartialFile>();
+		mmap = Boolean.parseBoolean(options.getOrDefault("mmap", "true"));
+		BlockFile.BLOCK_SIZE = Integer.parseInt(options.getOrDefault("block_size", "1048576"));
+		block_threshold = Long.parseLong(options.getOrDefault("block_threshold", "" + (max_size / 4)));
+		partial = Boolean.parseBoolean(options.getOrDefault("partial", "true"));
+		if (options.containsKey("trace")) {
+			trace_log = new PrintWriter(new FileWriter(options.get("trace"), true));
+		}
+		if (Boolean.parseBoolean(options.getOrDefault("write_behind", "false"))) {
+			write_behind = new WriteBehind(cache_dir);
+		}
+		chunks = null;
+		if (Boolean.parseBoolean(options.getOrDefault("dedup", "false"))) {
+			chunks = new ChunkIndex(MAX_CHUNKS);
+		}
+		if (options.containsKey("metrics")) {
+			Metrics.enable("proxy", Long.parseLong(options.get("metrics")));
+		}
+	}
+}
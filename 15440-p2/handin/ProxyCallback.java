@@ -0,0 +1,18 @@
+/**
+ * File: ProxyCallback.java
+ * Description: Defines the callback interface exported by proxies
+ * Author: Joseph Jia (josephji)
+ * 
+ * This file defines the remote object a proxy registers with the server
+ * through RMIInterface.registerProxy. The server calls it when a file
+ * changes, so the proxy can drop its lease and stale cached versions
+ * right away instead of finding out on its next open.
+ */
+
+// Imported libraries
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+interface ProxyCallback extends Remote {
+    void invalidate (String path, int version) throws RemoteException;
+}
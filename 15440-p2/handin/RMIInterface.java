@@ -14,8 +14,24 @@ import java.rmi.RemoteException;
 interface RMIInterface extends Remote {
     void createFile (String path) throws RemoteException;
     void updateFile (String path, byte[] buf, long pos) throws RemoteException;
+    int updateRanges (String path, int base_version, FileDelta delta) throws RemoteException;
+    int updateRanges (String path, int base_version, FileDelta delta, boolean packed) throws RemoteException;
+    RemoteUpload beginUpload (String path, int base_version) throws RemoteException;
     int deleteFile (String path) throws RemoteException;
     long getFileLength (String path) throws RemoteException;
     byte[] getFileInfo (String path, long pos) throws RemoteException;
     int serverExists (String path) throws RemoteException;
+    FileMeta[] statFiles (String[] paths) throws RemoteException;
+    Lease validate (String path) throws RemoteException;
+    Lease validate (String path, int proxy_id) throws RemoteException;
+    FileMeta[] validate (String[] paths, int proxy_id) throws RemoteException;
+    int registerProxy (ProxyCallback callback) throws RemoteException;
+    FileStream openStream (String path, int window) throws RemoteException;
+    FileStream openStream (String path, int window, boolean packed) throws RemoteException;
+    FileStream readRange (String path, long pos, int len) throws RemoteException;
+    FileStream readRange (String path, long pos, int len, boolean packed) throws RemoteException;
+    FileRecipe getRecipe (String path) throws RemoteException;
+    byte[][] getChunks (String path, int version, long[] offsets, int[] lengths) throws RemoteException;
+    byte[][] getChunks (String path, int version, long[] offsets, int[] lengths, boolean packed) throws RemoteException;
+    int capabilities () throws RemoteException;
 }
@@ -0,0 +1,22 @@
+/**
+ * File: RemoteStream.java
+ * Description: Defines the remote stream interface
+ * Author: Joseph Jia (josephji)
+ * 
+ * This file defines the remote object handed out by the server
+ * for streaming the contents of a file to the proxy. The server
+ * keeps the file open between calls, so each call only pays for
+ * the data that is sent. The open file is the version the stream
+ * started on, so ranges of it can still be read at any offset after
+ * the file is replaced.
+ */
+
+// Imported libraries
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+interface RemoteStream extends Remote {
+    byte[] read (int max_bytes) throws RemoteException;
+    byte[] readAt (long pos, int len) throws RemoteException;
+    void close () throws RemoteException;
+}
@@ -0,0 +1,24 @@
+/**
+ * File: RemoteUpload.java
+ * Description: Defines the remote upload session interface
+ * Author: Joseph Jia (josephji)
+ * 
+ * This file defines the remote object handed out by the server
+ * for sending a close's changes to it in pieces. The pieces are
+ * written to a shadow copy of the file, and only replace the file
+ * on commit, so readers never see half of an upload. Chunks the
+ * server already has can be written by hash instead of by value,
+ * and pieces can be sent framed by Packer to a server that takes them.
+ */
+
+// Imported libraries
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+interface RemoteUpload extends Remote {
+    boolean write (long pos, byte[] data) throws RemoteException;
+    boolean writePacked (long pos, byte[] frame) throws RemoteException;
+    boolean[] writeKnown (long[] pos, byte[][] hashes) throws RemoteException;
+    int commit (long length) throws RemoteException;
+    void abort () throws RemoteException;
+}
@@ -11,18 +11,54 @@
 import java.rmi.*;
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.rmi.registry.*;
 import java.rmi.server.UnicastRemoteObject;
+import java.rmi.server.Unreferenced;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Server extends UnicastRemoteObject implements RMIInterface {
     // Global Variables
-    public static ConcurrentHashMap<String, ReentrantReadWriteLock> locks;
+    public static LockTable locks;
+    public static int lock_stripes = 1024;
     public static ConcurrentHashMap<String, Integer> max_versions;
+    public static VersionStore version_store; // saves max_versions across restarts
+    public static ConcurrentHashMap<String, Long> lease_expiry;
+    public static ConcurrentHashMap<String, Integer> changing; // path -> changes revoking its leases
+    public static long lease_ms = 1000;
+
+    // Callback Variables
+    public static ConcurrentHashMap<Integer, ProxyCallback> callbacks;
+    public static ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> lease_holders;
+    public static AtomicInteger next_proxy_id;
+    public static ThreadPoolExecutor notifier;
+    public static final int NOTIFY_THREADS = 8;
+    public static final int NOTIFY_QUEUE = 1024;
     public String root_dir;
+    public int port;
     public static final int CHUNK_SIZE = 50000;
+    public static final int MAX_WINDOW = 64; // max chunks sent per stream read
+    public static final String UPLOAD_DIR = ".uploads"; // shadow copies, under the root
+    public static HandlePool handles;
+    public static int handle_capacity = 256;
+    public static ChunkIndex chunk_index; // chunks of the files recipes were made for
+    public static Map<String, FileRecipe> recipes; // last recipe made per server path
+    public static final int MAX_RECIPES = 1024;
+    public static final int MAX_CHUNKS = 1 << 20;
+    public static AtomicLong next_upload = new AtomicLong(0);
+    public static Packer packer; // packs the single-call transfers of proxies that take frames
 
     /* 
      * Function: Server Constructor
@@ -32,6 +68,389 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
      */
     public Server (int port) throws RemoteException {
         super(port);
+        this.port = port;
+    }
+
+    /*
+     * Class: ServerStream
+     * Remote object that streams one open file to a proxy.
+     * The stream holds a pooled handle to the file between reads, so each
+     * read is a single positional read instead of an open per chunk. The
+     * handle is released on close() or when the proxy drops its reference
+     * to the stream.
+     * Changes replace the file with a rename instead of writing into it,
+     * so the open file keeps the version the stream started on and reads
+     * need no lock.
+     */
+    private static class ServerStream extends UnicastRemoteObject
+            implements RemoteStream, Unreferenced {
+        private HandlePool.Handle handle;
+        private FileChannel ch;
+        private long pos;
+        private long length;
+        private Packer packer; // null to send chunks unframed
+
+        public ServerStream (HandlePool.Handle h, long start, long len, int port, Packer p)
+                throws RemoteException {
+            super(port);
+            handle = h;
+            ch = h.ch;
+            pos = start;
+            length = len;
+            packer = p;
+        }
+
+        /*
+         * Function: read
+         * Reads the next window of the file
+         * 
+         * @param max_bytes - max number of bytes to send back
+         * @return byte array of content, framed if the stream was opened
+         *         packed, empty at end of file, null on error
+         */
+        public synchronized byte[] read (int max_bytes) {
+            if (ch == null) {
+                return null;
+            }
+            try {
+                long max_read = Math.max(1, Math.min(max_bytes, MAX_WINDOW * CHUNK_SIZE));
+                int buf_size = (int) Math.min(length - pos, max_read);
+                byte[] buf = new byte[buf_size];
+                readFully(ch, ByteBuffer.wrap(buf), pos);
+                pos += buf_size;
+                return (packer == null) ? buf : packer.pack(buf);
+            } catch (IOException e) {
+                System.err.println(e.toString());
+                return null;
+            }
+        }
+
+        /*
+         * Function: readAt
+         * Reads a range of the version the stream started on, without
+         * moving the stream
+         * 
+         * @param at - offset of the first byte to read
+         * @param len - number of bytes to read, cut off at the end of the file
+         * @return byte array of content, framed if the stream was opened
+         *         packed, null on error or after close
+         */
+        public synchronized byte[] readAt (long at, int len) {
+            if (ch == null) {
+                return null;
+            }
+            try {
+                long max_read = Math.min((long) len, (long) MAX_WINDOW * CHUNK_SIZE);
+                byte[] buf = new byte[(int) Math.max(0, Math.min(length - at, max_read))];
+                readFully(ch, ByteBuffer.wrap(buf), at);
+                return (packer == null) ? buf : packer.pack(buf);
+            } catch (IOException e) {
+                System.err.println(e.toString());
+                return null;
+            }
+        }
+
+        /*
+         * Function: close
+         * Releases the file and unexports the stream
+         */
+        public synchronized void close () {
+            if (ch == null) {
+                return;
+            }
+            handles.release(handle);
+            ch = null;
+            try {
+                unexportObject(this, true);
+            } catch (NoSuchObjectException e) {
+                // already unexported
+            }
+        }
+
+        /*
+         * Function: unreferenced
+         * Called by RMI when the proxy no longer holds the stream
+         */
+        public void unreferenced () {
+            close();
+        }
+    }
+
+    /*
+     * Class: ServerUpload
+     * Remote object that takes one close's changes from a proxy.
+     * Writes go to a shadow file that starts out empty, and commit fills
+     * in the bytes the upload didn't write from the current file, then
+     * renames the shadow over the file, so the version only goes up once
+     * and readers never wait on or see part of an upload. An upload that
+     * writes the whole file copies nothing; one that patches a few ranges
+     * still copies the rest of the file once, at commit.
+     * The shadow is deleted on abort() or when the proxy drops its
+     * reference to the upload without committing.
+     */
+    private static class ServerUpload implements RemoteUpload, Unreferenced {
+        private String path;
+        private String serv_path;
+        private int base_version;
+        private File shadow;
+        private FileChannel ch;
+        private DirtyRanges written; // ranges the upload wrote into the shadow
+        private boolean legacy; // from updateFile, which may write into the result in place
+
+        public ServerUpload (String p, String sp, int base, File s) throws IOException {
+            path = p;
+            serv_path = sp;
+            base_version = base;
+            shadow = s;
+            ch = FileChannel.open(shadow.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            written = new DirtyRanges();
+        }
+
+        /*
+         * Function: write
+         * Writes bytes into the shadow copy
+         * 
+         * @param pos - position in the file to start at
+         * @param data - bytes to write
+         * @return true on success, false on error
+         */
+        public synchronized boolean write (long pos, byte[] data) {
+            if (ch == null) {
+                return false;
+            }
+            try {
+                writeFully(ch, ByteBuffer.wrap(data), pos);
+                written.add(pos, data.length);
+                return true;
+            } catch (IOException e) {
+                System.err.println(e.toString());
+                return false;
+            }
+        }
+
+        /*
+         * Function: writePacked
+         * Writes a framed chunk into the shadow copy
+         * 
+         * @param pos - position in the file to start at
+         * @param frame - bytes to write, framed by Packer
+         * @return true on success, false on error or a corrupt frame
+         */
+        public boolean writePacked (long pos, byte[] frame) {
+            try {
+                return write(pos, Packer.unpack(frame));
+            } catch (IOException e) {
+                System.err.println(e.toString());
+                return false;
+            }
+        }
+
+        /*
+         * Function: writeKnown
+         * Writes chunks into the shadow copy by hash, from wherever the
+         * server has seen them, so the proxy only sends the ones it lacks
+         * 
+         * @param pos - position in the file of each chunk
+         * @param hashes - SHA-256 of each chunk
+         * @return for each chunk, true if it was written
+         */
+        public synchronized boolean[] writeKnown (long[] pos, byte[][] hashes) {
+            boolean[] found = new boolean[hashes.length];
+            for (int i = 0; i < hashes.length && ch != null; i++) {
+                byte[] data = chunk_index.read(hashes[i]);
+                if (data != null && write(pos[i], data)) {
+                    found[i] = true;
+                    Metrics.add("server.dedup_bytes_known", data.length);
+                }
+            }
+            return found;
+        }
+
+        /*
+         * Function: commit
+         * Fills in the shadow from the current file and replaces the file
+         * with it, ending the upload. The fill is done without the lock;
+         * if another upload committed while it ran, the gaps are filled
+         * again from the newest contents under the lock.
+         * 
+         * @param length - final length of the file, -1 for the longer of
+         *                 the file and the writes
+         * @return the new version, -1 if the file moved past the base version,
+         *         -5 on error
+         */
+        public synchronized int commit (long length) {
+            if (ch == null) {
+                return -5;
+            }
+            int seen = max_versions.getOrDefault(serv_path, 1);
+            if (base_version != 0 && base_version != seen) {
+                abort();
+                return -1;
+            }
+            ReentrantReadWriteLock lock = locks.get(serv_path);
+            File file = new File(serv_path);
+            int snap_version;
+            Object snap_key;
+            long final_len;
+            try {
+                FileChannel base = null;
+                lockRead(lock);
+                try {
+                    snap_version = max_versions.getOrDefault(serv_path, 1);
+                    snap_key = fileKey(file);
+                    if (snap_key != null) {
+                        base = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                // commits rename a new file in, so base keeps the contents it opened with
+                try {
+                    final_len = fill(base, length);
+                } finally {
+                    if (base != null) {
+                        base.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println(e.toString());
+                abort();
+                return -5;
+            }
+
+            // revoke leases before locking; seen + 1 is never above the version this gets
+            beginChange(serv_path, path, seen + 1);
+            lockWrite(lock);
+            try {
+                max_versions.putIfAbsent(serv_path, 1);
+                int curr_ver = max_versions.get(serv_path);
+                if (base_version != 0 && base_version != curr_ver) {
+                    return -1;
+                }
+                Object curr_key = fileKey(file);
+                if (curr_ver != snap_version || !Objects.equals(curr_key, snap_key)) {
+                    FileChannel base = curr_key == null ? null
+                        : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    try {
+                        final_len = fill(base, length);
+                    } finally {
+                        if (base != null) {
+                            base.close();
+                        }
+                    }
+                }
+                setLength(ch, final_len);
+                ch.close();
+                ch = null;
+
+                // the version is on disk before anyone can read the contents
+                version_store.record(serv_path, curr_ver + 1);
+                if (file.getParentFile() != null) {
+                    file.getParentFile().mkdirs();
+                }
+                Files.move(shadow.toPath(), file.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                handles.invalidate(serv_path);
+                if (legacy) {
+                    handles.markUnread(serv_path);
+                }
+                return curr_ver + 1;
+            } catch (IOException e) {
+                System.err.println(e.toString());
+                return -5;
+            } finally {
+                lock.writeLock().unlock();
+                endChange(serv_path);
+                abort();
+            }
+        }
+
+        /*
+         * Function: fill
+         * Copies the bytes the upload didn't write from the file into the
+         * shadow. Bytes past the end of the file are zeroed.
+         * 
+         * @param base - channel of the file, null if it doesn't exist
+         * @param length - final length of the file, -1 for the longer of
+         *                 the file and the writes
+         * @return the final length
+         */
+        private long fill (FileChannel base, long length) throws IOException {
+            long base_len = base == null ? 0 : base.size();
+            ArrayList<long[]> ranges = written.list(Long.MAX_VALUE);
+            long final_len = length;
+            if (final_len < 0) {
+                long end = ranges.isEmpty() ? 0 : ranges.get(ranges.size() - 1)[1];
+                final_len = Math.max(base_len, end);
+            }
+            long at = 0;
+            for (long[] r : written.list(final_len)) {
+                copyGap(base, base_len, at, r[0]);
+                at = r[1];
+            }
+            copyGap(base, base_len, at, final_len);
+            return final_len;
+        }
+
+        /*
+         * Function: copyGap
+         * Copies [start, end) of the file into the shadow
+         * 
+         * @param base - channel of the file, null if it doesn't exist
+         * @param base_len - length of the file
+         * @param start - first byte to copy
+         * @param end - end of the bytes to copy
+         */
+        private void copyGap (FileChannel base, long base_len, long start, long end)
+                throws IOException {
+            if (start < end) {
+                Metrics.add("server.upload_fill_bytes", end - start);
+            }
+            long pos = start;
+            while (pos < Math.min(end, base_len)) {
+                ch.position(pos);
+                long n = base.transferTo(pos, Math.min(end, base_len) - pos, ch);
+                if (n <= 0) {
+                    throw new IOException(serv_path + " shrank while copying it");
+                }
+                pos += n;
+            }
+            byte[] zeros = new byte[(int) Math.min(CHUNK_SIZE, Math.max(0, end - pos))];
+            while (pos < end) {
+                int n = (int) Math.min(zeros.length, end - pos);
+                writeFully(ch, ByteBuffer.wrap(zeros, 0, n), pos);
+                pos += n;
+            }
+        }
+
+        /*
+         * Function: abort
+         * Ends the upload without committing, deleting the shadow copy
+         */
+        public synchronized void abort () {
+            if (ch != null) {
+                try {
+                    ch.close();
+                } catch (IOException e) {
+                    System.err.println(e.toString());
+                }
+                ch = null;
+            }
+            shadow.delete(); // already gone if it was committed
+            try {
+                UnicastRemoteObject.unexportObject(this, true);
+            } catch (NoSuchObjectException e) {
+                // not exported, or already unexported
+            }
+        }
+
+        /*
+         * Function: unreferenced
+         * Called by RMI when the proxy no longer holds the upload
+         */
+        public void unreferenced () {
+            abort();
+        }
     }
 
     /*
@@ -42,11 +461,13 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
      */
     public void createFile (String path) {
         String serv_path = Path.of(root_dir + "/" + path).normalize().toString();
+        if (isReserved(serv_path)) {
+            return;
+        }
 
         // get the lock
-        locks.putIfAbsent(serv_path, new ReentrantReadWriteLock());
         ReentrantReadWriteLock lock = locks.get(serv_path);
-        lock.writeLock().lock();
+        lockWrite(lock);
 
         File file = new File(serv_path);
         try {
@@ -65,46 +486,225 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
 
     /*
      * Function: updateFile
-     * Updates the file content on the server copy
-     * 
+     * Updates the file content on the server copy.
+     * Proxies that don't know about uploads send a close as one call per
+     * CHUNK_SIZE piece, each of which has to be visible and get its own
+     * version when it returns, as it always did. The first piece goes
+     * through an upload, which renames a new file in; the pieces after it
+     * are written straight into that file as long as no reader has opened
+     * it since, so a close copies the file once instead of once per piece.
+     *
      * @param path - pathname of the file to update
      * @param buf - contents to update the file with
      * @param pos - position in the file to start at
      */
     public void updateFile (String path, byte[] buf, long pos) {
         String serv_path = Path.of(root_dir + "/" + path).normalize().toString();
+        if (isReserved(serv_path)) {
+            return;
+        }
+        if (writeInPlace(path, serv_path, buf, pos) != 0) {
+            return;
+        }
+        ServerUpload up = newUpload(path, 0);
+        if (up == null) {
+            return;
+        }
+        up.legacy = true;
+        if (!up.write(pos, buf)) {
+            up.abort();
+            return;
+        }
+        up.commit(-1);
+    }
 
-        // get the lock
-        locks.putIfAbsent(serv_path, new ReentrantReadWriteLock());
+    /*
+     * Function: writeInPlace
+     * Writes a piece of a legacy close straight into the file, if the
+     * file was renamed in by updateFile and no handle to it has been
+     * acquired since, so nobody can be reading it. Leases are revoked and
+     * the version goes up as for a commit.
+     *
+     * @param path - pathname of the file to update
+     * @param serv_path - normalized server pathname
+     * @param buf - contents to update the file with
+     * @param pos - position in the file to start at
+     * @return the new version, 0 if the piece has to go through an
+     *         upload, -5 on error
+     */
+    private int writeInPlace (String path, String serv_path, byte[] buf, long pos) {
+        if (!handles.isUnread(serv_path)) {
+            return 0;
+        }
+        int seen = max_versions.getOrDefault(serv_path, 1);
+        beginChange(serv_path, path, seen + 1);
         ReentrantReadWriteLock lock = locks.get(serv_path);
-        lock.writeLock().lock();
+        lockWrite(lock);
 
         File file = new File(serv_path);
         try {
-            if (!file.exists()) {
-                if (file.getParentFile() != null) {
-                    file.getParentFile().mkdirs();
-                }
-                file.createNewFile();
+            // readers acquire under the read lock, so this can't change until unlock
+            if (!handles.isUnread(serv_path) || !file.isFile()) {
+                return 0;
             }
-            RandomAccessFile raf = new RandomAccessFile(file, "rw");
-            // clear raf
-            byte[] temp = new byte[(int)buf.length];
-            raf.seek(pos);
-            raf.write(temp);
-
-            // update to most recent close content
-            raf.seek(pos);
-            raf.write(buf);
-            raf.close();
-
-            // update max version value
+            max_versions.putIfAbsent(serv_path, 1);
             int curr_ver = max_versions.get(serv_path);
-            max_versions.replace(serv_path, curr_ver + 1);
+            // a crash between these only costs proxies a refetch
+            version_store.record(serv_path, curr_ver + 1);
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                writeFully(ch, ByteBuffer.wrap(buf), pos);
+            }
+            Metrics.count("server.legacy_in_place");
+            return curr_ver + 1;
         } catch (IOException e) {
             System.err.println(e.toString());
+            return -5;
         } finally {
             lock.writeLock().unlock();
+            endChange(serv_path);
+        }
+    }
+
+    /*
+     * Function: updateRanges
+     * Applies the changed byte ranges of a close to the server copy.
+     * All ranges and the new length are applied through one upload, so
+     * they replace the file together and the version only goes up once.
+     * 
+     * @param path - pathname of the file to update
+     * @param base_version - version the proxy copy started from, 0 to apply regardless
+     * @param delta - changed ranges and final length of the file
+     * @return the new version, -1 if the file moved past base_version, -5 on error
+     */
+    public int updateRanges (String path, int base_version, FileDelta delta) {
+        ServerUpload up = newUpload(path, base_version);
+        if (up == null) {
+            return -5;
+        }
+        for (int i = 0; i < delta.offsets.length; i++) {
+            if (!up.write(delta.offsets[i], delta.data[i])) {
+                up.abort();
+                return -5;
+            }
+        }
+        return up.commit(delta.length);
+    }
+
+    /*
+     * Function: updateRanges
+     * Applies changed byte ranges sent framed by Packer
+     * 
+     * @param path - pathname of the file to update
+     * @param base_version - version the proxy copy started from, 0 to apply regardless
+     * @param delta - changed ranges, each framed, and final length of the file
+     * @param packed - must be true; tells this apart from the unframed call
+     * @return the new version, -1 if the file moved past base_version, -5 on
+     *         error or a corrupt frame
+     */
+    public int updateRanges (String path, int base_version, FileDelta delta, boolean packed) {
+        byte[][] data = new byte[delta.data.length][];
+        try {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = packed ? Packer.unpack(delta.data[i]) : delta.data[i];
+            }
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            return -5;
+        }
+        return updateRanges(path, base_version, new FileDelta(delta.length, delta.offsets, data));
+    }
+
+    /*
+     * Function: beginUpload
+     * Starts an upload session for a close too big to send in one call.
+     * The proxy writes its changes to the session in pieces and commits
+     * them with the final length; the file and its version only change on
+     * commit.
+     * 
+     * @param path - pathname of the file to update
+     * @param base_version - version the proxy copy started from, 0 to apply regardless
+     * @return the session, null on error
+     */
+    public RemoteUpload beginUpload (String path, int base_version) {
+        ServerUpload up = newUpload(path, base_version);
+        if (up == null) {
+            return null;
+        }
+        try {
+            UnicastRemoteObject.exportObject(up, port);
+            return up;
+        } catch (RemoteException e) {
+            System.err.println(e.toString());
+            up.abort();
+            return null;
+        }
+    }
+
+    /*
+     * Function: isReserved
+     * Checks whether a server path is one of the server's own files,
+     * which share the root with the files proxies see. Every call that
+     * takes a pathname treats these as if they don't exist, so no client
+     * can read, replace or delete the version log or an upload's shadow.
+     * 
+     * @param serv_path - normalized server pathname
+     * @return true for the upload directory and the version store's files,
+     *         and anything under them
+     */
+    private boolean isReserved (String serv_path) {
+        Path rel = Path.of(root_dir).normalize().relativize(Path.of(serv_path));
+        if (rel.getNameCount() == 0 || rel.getName(0).toString().isEmpty()) {
+            return false;
+        }
+        String name = rel.getName(0).toString();
+        return name.equals(UPLOAD_DIR) || VersionStore.isOwnName(name);
+    }
+
+    /*
+     * Function: newUpload
+     * Makes an empty shadow under the upload directory, which is on the
+     * same file system as the file so commit can rename it
+     * 
+     * @param path - pathname of the file to update
+     * @param base_version - version the proxy copy started from, 0 to apply regardless
+     * @return the upload, null on error
+     */
+    private ServerUpload newUpload (String path, int base_version) {
+        String serv_path = Path.of(root_dir + "/" + path).normalize().toString();
+        if (isReserved(serv_path)) {
+            return null;
+        }
+        File shadow = new File(root_dir + "/" + UPLOAD_DIR, Long.toString(next_upload.incrementAndGet()));
+        try {
+            shadow.getParentFile().mkdirs();
+            Files.deleteIfExists(shadow.toPath());
+            Files.createFile(shadow.toPath());
+            return new ServerUpload(path, serv_path, base_version, shadow);
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            shadow.delete();
+            return null;
+        }
+    }
+
+    /*
+     * Function: fileKey
+     * Identifies the file a path names, which changes on every commit
+     * since commits rename a new file in
+     * 
+     * @param file - the server copy
+     * @return the file's key, null if it isn't a regular file
+     */
+    private static Object fileKey (File file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            // no key on some file systems; the renamed-in file's modified time differs instead
+            return attrs.fileKey() != null ? attrs.fileKey() : attrs.lastModifiedTime();
+        } catch (IOException e) {
+            return null;
         }
     }
 
@@ -117,16 +717,23 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
      */
     public int deleteFile (String path) {
         String serv_path = Path.of(root_dir + "/" + path).normalize().toString();
+        if (isReserved(serv_path)) {
+            return -1;
+        }
+        File file = new File(serv_path);
+        if (!file.exists()) {
+            return -1;
+        }
+        beginChange(serv_path, path, 0);
 
         // get the lock
-        locks.putIfAbsent(serv_path, new ReentrantReadWriteLock());
         ReentrantReadWriteLock lock = locks.get(serv_path);
-        lock.writeLock().lock();
+        lockWrite(lock);
 
-        File file = new File(serv_path);
         try {
             if (file.exists()) {
                 file.delete();
+                handles.invalidate(serv_path);
                 return 0;
             }
             else {
@@ -134,6 +741,7 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
             }
         } finally {
             lock.writeLock().unlock();
+            endChange(serv_path);
         }
     }
 
@@ -142,22 +750,29 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
      * Gets the length of the file on the server
      * 
      * @param path - pathname of the file
-     * @return the length, in bytes, of the file
+     * @return the length, in bytes, of the file, -5 on error or if it isn't a file
      */
     public long getFileLength (String path) {
         String serv_path = Path.of(root_dir + "/" + path).normalize().toString();
+        if (isReserved(serv_path)) {
+            return -5;
+        }
 
         // get the lock
-        locks.putIfAbsent(serv_path, new ReentrantReadWriteLock());
         ReentrantReadWriteLock lock = locks.get(serv_path);
-        lock.readLock().lock();
+        lockRead(lock);
 
         File file = new File(serv_path);
         try {
-            RandomAccessFile raf = new RandomAccessFile(file, "rw");
-            long length = raf.length();
-            raf.close();
-            return length;
+            if (!file.isFile()) {
+                return -5;
+            }
+            HandlePool.Handle h = handles.acquire(serv_path);
+            try {
+                return h.ch.size();
+            } finally {
+                handles.release(h);
+            }
         } catch (IOException e) {
             System.err.println(e.toString());
             return -5;
@@ -176,31 +791,36 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
      */
     public byte[] getFileInfo (String path, long pos) {
         String serv_path = Path.of(root_dir + "/" + path).normalize().toString();
+        if (isReserved(serv_path)) {
+            return null;
+        }
 
         // get the lock
-        locks.putIfAbsent(serv_path, new ReentrantReadWriteLock());
         ReentrantReadWriteLock lock = locks.get(serv_path);
-        lock.readLock().lock();
+        lockRead(lock);
 
         File file = new File(serv_path);
         byte[] buf = null;
         try {
-            if (!file.exists()) {
+            if (!file.isFile()) {
                 return null;
             }
 
-            RandomAccessFile raf = new RandomAccessFile(file, "rw");
-            int buf_size;
-            if (raf.length() - pos > CHUNK_SIZE) {
-                buf_size = CHUNK_SIZE;
-            }
-            else {
-                buf_size = (int)(raf.length() - pos);
+            HandlePool.Handle h = handles.acquire(serv_path);
+            try {
+                FileChannel ch = h.ch;
+                int buf_size;
+                if (ch.size() - pos > CHUNK_SIZE) {
+                    buf_size = CHUNK_SIZE;
+                }
+                else {
+                    buf_size = (int)(ch.size() - pos);
+                }
+                buf = new byte[buf_size];
+                readFully(ch, ByteBuffer.wrap(buf), pos);
+            } finally {
+                handles.release(h);
             }
-            buf = new byte[buf_size];
-            raf.seek(pos);
-            raf.read(buf);
-            raf.close();
             return buf;
         } catch (IOException e) {
             System.err.println(e.toString());
@@ -210,6 +830,315 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
         }
     }
 
+    /*
+     * Function: readRange
+     * Reads one range of a file, along with the version it was read from,
+     * so the proxy can cache pieces of a file without streaming all of it
+     * 
+     * @param path - pathname of the file
+     * @param pos - offset of the first byte to read
+     * @param len - number of bytes to read, cut off at the end of the file
+     * @return length, version and bytes of the range, null on error or if
+     *         the file doesn't exist
+     */
+    public FileStream readRange (String path, long pos, int len) {
+        String serv_path = Path.of(root_dir + "/" + path).normalize().toString();
+        if (isReserved(serv_path)) {
+            return null;
+        }
+
+        // get the lock
+        ReentrantReadWriteLock lock = locks.get(serv_path);
+        lockRead(lock);
+
+        File file = new File(serv_path);
+        try {
+            if (!file.isFile()) {
+                return null;
+            }
+            int version = getMaxVersion(path);
+            HandlePool.Handle h = handles.acquire(serv_path);
+            try {
+                long length = h.ch.size();
+                long max_read = Math.min((long) len, (long) MAX_WINDOW * CHUNK_SIZE);
+                byte[] buf = new byte[(int) Math.max(0, Math.min(length - pos, max_read))];
+                readFully(h.ch, ByteBuffer.wrap(buf), pos);
+                return new FileStream(length, version, buf, null);
+            } finally {
+                handles.release(h);
+            }
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Function: readRange
+     * Reads one range of a file, with the bytes framed by Packer if packed
+     * 
+     * @param path - pathname of the file
+     * @param pos - offset of the first byte to read
+     * @param len - number of bytes to read, cut off at the end of the file
+     * @param packed - true to frame the bytes
+     * @return length, version and bytes of the range, null on error or if
+     *         the file doesn't exist
+     */
+    public FileStream readRange (String path, long pos, int len, boolean packed) {
+        FileStream range = readRange(path, pos, len);
+        if (range != null && packed) {
+            range.data = packer.pack(range.data);
+        }
+        return range;
+    }
+
+    /*
+     * Function: getRecipe
+     * Gets the content-defined chunks of the current version of a file.
+     * The recipe is kept until the version changes, and its chunks are
+     * indexed so uploads can write them by hash. The file is chunked and
+     * hashed through a pooled handle after the lock is released, since
+     * commits rename a new file in and leave the handle on this version,
+     * so a big file doesn't hold up commits to the paths sharing its lock.
+     * 
+     * @param path - pathname of the file
+     * @return chunks, length and version of the file, null on error or if
+     *         it isn't a file
+     */
+    public FileRecipe getRecipe (String path) {
+        String serv_path = Path.of(root_dir + "/" + path).normalize().toString();
+        if (isReserved(serv_path)) {
+            return null;
+        }
+
+        // get the lock
+        ReentrantReadWriteLock lock = locks.get(serv_path);
+        lockRead(lock);
+
+        File file = new File(serv_path);
+        int version;
+        HandlePool.Handle h;
+        try {
+            if (!file.isFile()) {
+                return null;
+            }
+            version = getMaxVersion(path);
+            FileRecipe recipe = recipes.get(serv_path);
+            if (recipe != null && recipe.version == version) {
+                return recipe;
+            }
+            h = handles.acquire(serv_path);
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        long start = Metrics.start();
+        Chunker chunker = new Chunker();
+        FileRecipe recipe;
+        try {
+            long length = h.ch.size();
+            byte[] buf = new byte[(int) Math.min(length, MAX_WINDOW * CHUNK_SIZE)];
+            for (long pos = 0; pos < length; ) {
+                int n = (int) Math.min(buf.length, length - pos);
+                readFully(h.ch, ByteBuffer.wrap(buf, 0, n), pos);
+                chunker.update(buf, 0, n);
+                pos += n;
+            }
+            chunker.finish();
+            recipe = new FileRecipe(length, version, chunker.hashes(), chunker.lengths());
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            return null;
+        } finally {
+            handles.release(h);
+        }
+        // a commit may have come in meanwhile; keep whichever recipe is newer
+        recipes.merge(serv_path, recipe, (old, made) -> old.version > made.version ? old : made);
+        chunk_index.add(serv_path, recipe.hashes, recipe.lengths, 0);
+        Metrics.time("server.recipe", start);
+        return recipe;
+    }
+
+    /*
+     * Function: getChunks
+     * Reads chunks of a version of a file, for the ones of its recipe the
+     * proxy doesn't have
+     * 
+     * @param path - pathname of the file
+     * @param version - version the recipe was for
+     * @param offsets - offset of each chunk
+     * @param lengths - length of each chunk, up to a window in all
+     * @return bytes of each chunk, null on error, on a negative offset or
+     *         length, or if the version changed
+     */
+    public byte[][] getChunks (String path, int version, long[] offsets, int[] lengths) {
+        String serv_path = Path.of(root_dir + "/" + path).normalize().toString();
+        if (isReserved(serv_path) || offsets.length != lengths.length) {
+            return null;
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] < 0 || lengths[i] < 0) {
+                return null;
+            }
+        }
+
+        // get the lock
+        ReentrantReadWriteLock lock = locks.get(serv_path);
+        lockRead(lock);
+
+        File file = new File(serv_path);
+        try {
+            long total = 0;
+            for (int len : lengths) {
+                total += len;
+            }
+            if (!file.isFile() || getMaxVersion(path) != version
+                    || total > (long) MAX_WINDOW * CHUNK_SIZE) {
+                return null;
+            }
+            byte[][] out = new byte[offsets.length][];
+            HandlePool.Handle h = handles.acquire(serv_path);
+            try {
+                for (int i = 0; i < offsets.length; i++) {
+                    out[i] = new byte[lengths[i]];
+                    readFully(h.ch, ByteBuffer.wrap(out[i]), offsets[i]);
+                }
+            } finally {
+                handles.release(h);
+            }
+            return out;
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Function: getChunks
+     * Reads chunks of a version of a file, each framed by Packer if packed
+     * 
+     * @param path - pathname of the file
+     * @param version - version the recipe was for
+     * @param offsets - offset of each chunk
+     * @param lengths - length of each chunk, up to a window in all
+     * @param packed - true to frame the chunks
+     * @return bytes of each chunk, null on error or if the version changed
+     */
+    public byte[][] getChunks (String path, int version, long[] offsets, int[] lengths, boolean packed) {
+        byte[][] out = getChunks(path, version, offsets, lengths);
+        if (out != null && packed) {
+            for (int i = 0; i < out.length; i++) {
+                out[i] = packer.pack(out[i]);
+            }
+        }
+        return out;
+    }
+
+    /*
+     * Function: openStream
+     * Opens a file for streaming to the proxy. The first window of bytes is
+     * sent back with the length and version so small files need one call.
+     * 
+     * @param path - pathname of the file to stream
+     * @param window - number of chunks to send per call, 0 to send none
+     *                 and only hold the version open for readAt
+     * @return stream header, null on error or if file doesn't exist
+     */
+    public FileStream openStream (String path, int window) {
+        return streamFile(path, window, null);
+    }
+
+    /*
+     * Function: openStream
+     * Opens a file for streaming to the proxy, with the first window and
+     * every read framed by Packer if packed. The stream gets its own packer,
+     * so it backs off from compressing on its own file's contents only.
+     * 
+     * @param path - pathname of the file to stream
+     * @param window - number of chunks to send per call
+     * @param packed - true to frame the bytes
+     * @return stream header, null on error or if file doesn't exist
+     */
+    public FileStream openStream (String path, int window, boolean packed) {
+        Packer stream_packer = packed ? new Packer() : null;
+        FileStream fs = streamFile(path, window, stream_packer);
+        if (fs != null && packed) {
+            fs.data = stream_packer.pack(fs.data);
+        }
+        return fs;
+    }
+
+    /*
+     * Function: streamFile
+     * Opens a file for streaming, reading the first window
+     * 
+     * @param path - pathname of the file to stream
+     * @param window - number of chunks to send per call
+     * @param stream_packer - packer for the stream's reads, null for none
+     * @return stream header, null on error or if file doesn't exist
+     */
+    private FileStream streamFile (String path, int window, Packer stream_packer) {
+        String serv_path = Path.of(root_dir + "/" + path).normalize().toString();
+        if (isReserved(serv_path)) {
+            return null;
+        }
+
+        // get the lock
+        ReentrantReadWriteLock lock = locks.get(serv_path);
+        lockRead(lock);
+
+        File file = new File(serv_path);
+        try {
+            if (!file.exists()) {
+                return null;
+            }
+            int version = getMaxVersion(path);
+            if (file.isDirectory()) {
+                return new FileStream(0, version, new byte[0], null);
+            }
+
+            HandlePool.Handle h = handles.acquire(serv_path);
+            RemoteStream reader = null;
+            try {
+                long length = h.ch.size();
+                long max_read = (long) Math.max(0, Math.min(window, MAX_WINDOW)) * CHUNK_SIZE;
+                byte[] buf = new byte[(int) Math.min(length, max_read)];
+                readFully(h.ch, ByteBuffer.wrap(buf), 0);
+                if (buf.length < length) {
+                    reader = new ServerStream(h, buf.length, length, port, stream_packer); // releases h on close
+                }
+                return new FileStream(length, version, buf, reader);
+            } finally {
+                if (reader == null) {
+                    handles.release(h);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Function: capabilities
+     * Lists the optional transfer features this server supports, so a
+     * proxy only uses the ones both sides know about
+     * 
+     * @return bit set of Packer.CAP_LZ
+     */
+    public int capabilities () {
+        return Packer.CAP_LZ;
+    }
+
     /*
      * Function: getMaxVersion
      * Gets the max version number of a file on the server
@@ -221,9 +1150,8 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
         String serv_path = Path.of(root_dir + "/" + path).normalize().toString();
 
         // get the lock
-        locks.putIfAbsent(serv_path, new ReentrantReadWriteLock());
         ReentrantReadWriteLock lock = locks.get(serv_path);
-        lock.readLock().lock();
+        lockRead(lock);
 
         try {
             if (!max_versions.containsKey(serv_path)) {
@@ -235,6 +1163,286 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
         }
     }
 
+    /*
+     * Function: validate
+     * Same as serverExists, but also grants the proxy a lease on the
+     * version. Until the lease runs out, calls that change the file wait,
+     * so the proxy can serve opens at this version without asking again.
+     * 
+     * @param path - pathname of the file
+     * @return lease on the max version, version 0 with no lease if the file doesn't exist
+     */
+    public Lease validate (String path) {
+        return validate(path, 0);
+    }
+
+    /*
+     * Function: validate
+     * Same as validate, for a registered proxy. The lease is recorded
+     * against the proxy, so a change can revoke it with a callback
+     * instead of waiting for it to run out.
+     * 
+     * @param path - pathname of the file
+     * @param proxy_id - id from registerProxy, 0 if not registered
+     * @return lease on the max version, version 0 with no lease if the file doesn't exist
+     */
+    public Lease validate (String path, int proxy_id) {
+        String serv_path = Path.of(root_dir + "/" + path).normalize().toString();
+
+        // get the lock
+        ReentrantReadWriteLock lock = locks.get(serv_path);
+        lockRead(lock);
+
+        try {
+            int version = serverExists(path);
+            return new Lease(version, grant(serv_path, version, proxy_id));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Function: validate
+     * Same as validate, for many files in one call
+     * 
+     * @param paths - pathnames of the files
+     * @param proxy_id - id from registerProxy, 0 if not registered
+     * @return metadata of each file, with a lease on each one that exists
+     */
+    public FileMeta[] validate (String[] paths, int proxy_id) {
+        return statAll(paths, proxy_id, true);
+    }
+
+    /*
+     * Function: statFiles
+     * Gets the version, length and type of many files in one call
+     * 
+     * @param paths - pathnames of the files
+     * @return metadata of each file, version 0 for one that doesn't exist
+     */
+    public FileMeta[] statFiles (String[] paths) {
+        return statAll(paths, 0, false);
+    }
+
+    /*
+     * Function: statAll
+     * Gets the metadata of many files under one set of read locks, so the
+     * batch is a consistent snapshot. The locks are taken in stripe order,
+     * so batches that share locks can never wait on each other.
+     * 
+     * @param paths - pathnames of the files
+     * @param proxy_id - id from registerProxy, 0 if not registered
+     * @param lease - true to grant a lease on each file that exists
+     * @return metadata of each file
+     */
+    private FileMeta[] statAll (String[] paths, int proxy_id, boolean lease) {
+        String[] serv_paths = new String[paths.length];
+        TreeSet<Integer> order = new TreeSet<Integer>();
+        for (int i = 0; i < paths.length; i++) {
+            serv_paths[i] = Path.of(root_dir + "/" + paths[i]).normalize().toString();
+            order.add(locks.stripe(serv_paths[i]));
+        }
+
+        // get the locks
+        ArrayList<ReentrantReadWriteLock> held = new ArrayList<ReentrantReadWriteLock>();
+        try {
+            for (int stripe : order) {
+                ReentrantReadWriteLock lock = locks.at(stripe);
+                lockRead(lock);
+                held.add(lock);
+            }
+
+            FileMeta[] metas = new FileMeta[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                File file = new File(serv_paths[i]);
+                if (isReserved(serv_paths[i]) || !file.exists()) {
+                    metas[i] = new FileMeta(0, 0, 0, false);
+                    continue;
+                }
+                int version = getMaxVersion(paths[i]);
+                long term = lease ? grant(serv_paths[i], version, proxy_id) : 0;
+                metas[i] = new FileMeta(version, term, file.length(), file.isDirectory());
+            }
+            return metas;
+        } finally {
+            for (int i = held.size() - 1; i >= 0; i--) {
+                held.get(i).readLock().unlock();
+            }
+        }
+    }
+
+    /*
+     * Function: grant
+     * Records a lease on a version. The caller holds the path's read lock.
+     * No lease is granted on a path that is about to change.
+     * 
+     * @param serv_path - normalized server pathname
+     * @param version - version the lease is on, 0 if the file doesn't exist
+     * @param proxy_id - id from registerProxy, 0 if not registered
+     * @return the lease term in ms, 0 if no lease was granted
+     */
+    private static long grant (String serv_path, int version, int proxy_id) {
+        if (version == 0 || lease_ms <= 0 || changing.containsKey(serv_path)) {
+            return 0;
+        }
+        long expiry = System.nanoTime() + lease_ms * 1000000;
+        if (callbacks.containsKey(proxy_id)) {
+            lease_holders.computeIfAbsent(serv_path, k -> new ConcurrentHashMap<Integer, Long>())
+                .merge(proxy_id, expiry, Math::max);
+        }
+        else {
+            lease_expiry.merge(serv_path, expiry, Math::max);
+        }
+        return lease_ms;
+    }
+
+    /*
+     * Function: registerProxy
+     * Registers a proxy's callback for invalidation notices
+     * 
+     * @param callback - remote object exported by the proxy
+     * @return id the proxy passes to validate
+     */
+    public int registerProxy (ProxyCallback callback) {
+        int id = next_proxy_id.incrementAndGet();
+        callbacks.put(id, callback);
+        return id;
+    }
+
+    /*
+     * Function: beginChange
+     * Marks a path as about to change and revokes the leases on it, before
+     * the change takes the path's write lock. Waiting on a slow or dead
+     * proxy can take up to a lease term, and doing it without the lock
+     * keeps the opens, stats and closes of every other path on the stripe
+     * going meanwhile. The path is marked first, so no lease is granted
+     * after the revoke; taking and dropping the write lock lets grants
+     * already in progress, which hold the read lock, finish and be seen.
+     * Every call is paired with endChange once the change is done.
+     * 
+     * @param serv_path - normalized server pathname
+     * @param path - pathname as the proxies know it
+     * @param version - the new version, 0 if the file is being deleted
+     */
+    private static void beginChange (String serv_path, String path, int version) {
+        changing.merge(serv_path, 1, Integer::sum);
+        ReentrantReadWriteLock lock = locks.get(serv_path);
+        lockWrite(lock);
+        lock.writeLock().unlock();
+        invalidate(serv_path, path, version);
+    }
+
+    /*
+     * Function: endChange
+     * Lets leases be granted on a path again once no change is in progress
+     * 
+     * @param serv_path - normalized server pathname
+     */
+    private static void endChange (String serv_path) {
+        changing.computeIfPresent(serv_path, (k, n) -> (n == 1) ? null : n - 1);
+    }
+
+    /*
+     * Function: invalidate
+     * Tells every registered proxy that a path is about to change.
+     * Notices go out through the bounded notifier pool. The caller has
+     * marked the path changing, holds no lock on it, and waits only for
+     * proxies holding a lease: each one either acks the notice or its
+     * lease runs out, so the wait is at most one lease term. Leases given
+     * to unregistered proxies can only run out.
+     * 
+     * @param serv_path - normalized server pathname
+     * @param path - pathname as the proxies know it
+     * @param version - the new version, 0 if the file is being deleted
+     */
+    private static void invalidate (String serv_path, String path, int version) {
+        String proxy_path = Path.of(path).normalize().toString();
+        ConcurrentHashMap<Integer, Long> holders = lease_holders.remove(serv_path);
+        ArrayList<Future<Boolean>> acks = new ArrayList<Future<Boolean>>();
+        ArrayList<Long> deadlines = new ArrayList<Long>();
+
+        for (Map.Entry<Integer, ProxyCallback> ent : callbacks.entrySet()) {
+            int id = ent.getKey();
+            ProxyCallback cb = ent.getValue();
+            Future<Boolean> ack = notifier.submit(() -> {
+                try {
+                    cb.invalidate(proxy_path, version);
+                    return true;
+                } catch (RemoteException e) {
+                    callbacks.remove(id, cb); // proxy is gone
+                    return false;
+                }
+            });
+            Long expiry = (holders == null) ? null : holders.get(id);
+            if (expiry != null) {
+                acks.add(ack);
+                deadlines.add(expiry);
+            }
+        }
+
+        waitForLeases(serv_path);
+        for (int i = 0; i < acks.size(); i++) {
+            waitForAck(acks.get(i), deadlines.get(i));
+        }
+    }
+
+    /*
+     * Function: waitForAck
+     * Waits for a proxy to ack an invalidation or for its lease to run out
+     * 
+     * @param ack - result of the callback, true if it was delivered
+     * @param expiry - System.nanoTime() when the proxy's lease runs out
+     */
+    private static void waitForAck (Future<Boolean> ack, long expiry) {
+        long wait = expiry - System.nanoTime();
+        if (wait > 0) {
+            try {
+                if (ack.get(wait, TimeUnit.NANOSECONDS)) {
+                    return;
+                }
+            } catch (TimeoutException e) {
+                return; // lease ran out
+            } catch (InterruptedException | ExecutionException e) {
+                // not delivered, so the lease has to run out
+            }
+        }
+        sleepUntil(expiry);
+    }
+
+    /*
+     * Function: waitForLeases
+     * Waits until every lease granted on a path has run out.
+     * The path is marked changing, so no new leases can be granted.
+     * 
+     * @param serv_path - normalized server pathname
+     */
+    private static void waitForLeases (String serv_path) {
+        Long expiry = lease_expiry.get(serv_path);
+        if (expiry == null) {
+            return;
+        }
+        sleepUntil(expiry);
+        lease_expiry.remove(serv_path, expiry);
+    }
+
+    /*
+     * Function: sleepUntil
+     * Sleeps until a System.nanoTime() deadline has passed
+     * 
+     * @param deadline - time to sleep until
+     */
+    private static void sleepUntil (long deadline) {
+        long wait = deadline - System.nanoTime();
+        while (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                // keep waiting, the lease is still valid
+            }
+            wait = deadline - System.nanoTime();
+        }
+    }
+
     /*
      * Function: serverExists
      * Checks if the file exists on the server
@@ -244,11 +1452,13 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
      */
     public int serverExists (String path) {
         String serv_path = Path.of(root_dir + "/" + path).normalize().toString();
+        if (isReserved(serv_path)) {
+            return 0;
+        }
 
         // get the lock
-        locks.putIfAbsent(serv_path, new ReentrantReadWriteLock());
         ReentrantReadWriteLock lock = locks.get(serv_path);
-        lock.readLock().lock();
+        lockRead(lock);
 
         try {
             File file = new File(serv_path);
@@ -263,25 +1473,140 @@ public class Server extends UnicastRemoteObject implements RMIInterface {
         }
     }
 
+    /*
+     * Function: readFully
+     * Fills a buffer from a file at a position
+     */
+    private static void readFully (FileChannel ch, ByteBuffer buf, long at) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, at);
+            if (n < 0) {
+                throw new EOFException("read ended at " + at);
+            }
+            at += n;
+        }
+    }
+
+    /*
+     * Function: writeFully
+     * Writes a whole buffer to a file at a position
+     */
+    private static void writeFully (FileChannel ch, ByteBuffer buf, long at) throws IOException {
+        while (buf.hasRemaining()) {
+            at += ch.write(buf, at);
+        }
+    }
+
+    /*
+     * Function: lockRead
+     * Takes a file's read lock, recording how long it waited
+     */
+    private static void lockRead (ReentrantReadWriteLock lock) {
+        long start = Metrics.start();
+        lock.readLock().lock();
+        Metrics.time("server.read_lock_wait", start);
+    }
+
+    /*
+     * Function: lockWrite
+     * Takes a file's write lock, recording how long it waited
+     */
+    private static void lockWrite (ReentrantReadWriteLock lock) {
+        long start = Metrics.start();
+        lock.writeLock().lock();
+        Metrics.time("server.write_lock_wait", start);
+    }
+
+    /*
+     * Function: setLength
+     * Truncates or zero-extends a file to the given length
+     */
+    private static void setLength (FileChannel ch, long length) throws IOException {
+        if (ch.size() > length) {
+            ch.truncate(length);
+        }
+        else if (ch.size() < length) {
+            writeFully(ch, ByteBuffer.wrap(new byte[1]), length - 1);
+        }
+    }
+
     /*
      * Function: main
      * Starts the server and sets up communication with proxy
      * 
      * @param args[0] - port value
      * @param args[1] - server root directory
+     * @param args[2...] - optional settings given as name=value
+     *                     lease - lease term in ms granted by validate (default 1000)
+     *                     metrics - seconds between metric dumps to stderr, 0 for JMX only
+     *                               (default off)
+     *                     handles - max open file handles kept between calls (default 256)
+     *                     locks - number of striped path locks (default 1024)
      */
     public static void main (String args[]) {
-        locks = new ConcurrentHashMap<String, ReentrantReadWriteLock>();
-        max_versions = new ConcurrentHashMap<String, Integer>();
         int port = Integer.parseInt(args[0]);
+        for (int i = 2; i < args.length; i++) {
+            String[] opt = args[i].split("=", 2);
+            if (opt.length == 2 && opt[0].equals("lease")) {
+                lease_ms = Long.parseLong(opt[1]);
+            }
+            if (opt.length == 2 && opt[0].equals("metrics")) {
+                Metrics.enable("server", Long.parseLong(opt[1]));
+            }
+            if (opt.length == 2 && opt[0].equals("handles")) {
+                handle_capacity = Integer.parseInt(opt[1]);
+            }
+            if (opt.length == 2 && opt[0].equals("locks")) {
+                lock_stripes = Integer.parseInt(opt[1]);
+            }
+        }
         try {
-            Server serv = new Server(port);
-            Registry registry = LocateRegistry.createRegistry(port);
-            registry.bind("RMIInterface", serv);
-            serv.root_dir = args[1];
+            start(port, args[1]);
         } catch (Exception e) {
             System.err.println(e.toString());
             e.printStackTrace();
         }
     }
+
+    /*
+     * Function: start
+     * Creates the server and binds it in a new registry on the given port
+     * 
+     * @param port - port value
+     * @param root - server root directory
+     * @return the bound server
+     */
+    public static Server start (int port, String root) throws Exception {
+        locks = new LockTable(lock_stripes);
+        max_versions = new ConcurrentHashMap<String, Integer>();
+        version_store = new VersionStore(root, max_versions);
+        lease_expiry = new ConcurrentHashMap<String, Long>();
+        changing = new ConcurrentHashMap<String, Integer>();
+        callbacks = new ConcurrentHashMap<Integer, ProxyCallback>();
+        lease_holders = new ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>>();
+        next_proxy_id = new AtomicInteger(0);
+        handles = new HandlePool(handle_capacity);
+        chunk_index = new ChunkIndex(MAX_CHUNKS);
+        packer = new Packer();
+        recipes = Collections.synchronizedMap(new LinkedHashMap<String, FileRecipe>(16, 0.75f, true) {
+            protected boolean removeEldestEntry (Map.Entry<String, FileRecipe> eldest) {
+                return size() > MAX_RECIPES;
+            }
+        });
+        notifier = new ThreadPoolExecutor(NOTIFY_THREADS, NOTIFY_THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(NOTIFY_QUEUE), new ThreadPoolExecutor.CallerRunsPolicy());
+        Server serv = new Server(port);
+        serv.root_dir = root;
+
+        // shadows of uploads that never committed
+        File[] left = new File(root, UPLOAD_DIR).listFiles();
+        if (left != null) {
+            for (File f : left) {
+                f.delete();
+            }
+        }
+        Registry registry = LocateRegistry.createRegistry(port);
+        registry.bind("RMIInterface", serv);
+        return serv;
+    }
 }
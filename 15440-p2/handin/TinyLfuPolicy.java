@@ -0,0 +1,160 @@
+/**
+ * File: TinyLfuPolicy.java
+ * Description: LRU eviction with a TinyLFU admission filter
+ * Author: Joseph Jia (josephji)
+ *
+ * This file implements TinyLFU admission in front of an LRU list. How
+ * often each file is used is counted in a count-min sketch, keyed by
+ * path without the version, so a new version keeps the popularity of
+ * the old one. The counters are halved every SAMPLES_PER_SLOT * WIDTH
+ * uses, so old popularity fades. A newly cached entry stays on probation
+ * until eviction needs room. It is then admitted to the LRU list only if
+ * it is used more often than the list's LRU entry, which is evicted in
+ * its place; otherwise the newcomer is evicted. A one-time read of a big
+ * cold file is therefore evicted before the small hot files it would
+ * have pushed out. All calls share one lock.
+ */
+
+// Imported Libraries
+import java.util.*;
+
+public class TinyLfuPolicy implements EvictionPolicy {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 16;
+    private static final int MAX_COUNT = 15;
+    private static final int SAMPLES_PER_SLOT = 10;
+    private static final int[] SEEDS = {0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+
+    private int[][] sketch;
+    private int samples;
+    private LinkedHashSet<Cache.Entry> probation; // idle newcomers, oldest first
+    private LinkedHashSet<Cache.Entry> main; // idle admitted entries, least recently used first
+    private HashSet<Cache.Entry> admitted;
+
+    public TinyLfuPolicy () {
+        sketch = new int[DEPTH][WIDTH];
+        samples = 0;
+        probation = new LinkedHashSet<Cache.Entry>();
+        main = new LinkedHashSet<Cache.Entry>();
+        admitted = new HashSet<Cache.Entry>();
+    }
+
+    /*
+     * Function: key
+     * @return what the entry's uses are counted under: its path without
+     *         the version, plus the block index for a block
+     */
+    private static String key (Cache.Entry ent) {
+        String base = Cache.basePath(ent.path);
+        if (Cache.isBlock(ent.path)) {
+            return base + ent.path.substring(ent.path.lastIndexOf("-"));
+        }
+        return base;
+    }
+
+    private static int slot (int hash, int row) {
+        int h = hash * SEEDS[row];
+        return (h ^ (h >>> 16)) & (WIDTH - 1);
+    }
+
+    /*
+     * Function: increment
+     * Counts one use of a key, halving every counter once enough uses
+     * have been counted
+     */
+    private void increment (String key) {
+        int hash = key.hashCode();
+        for (int row = 0; row < DEPTH; row++) {
+            int i = slot(hash, row);
+            if (sketch[row][i] < MAX_COUNT) {
+                sketch[row][i]++;
+            }
+        }
+        if (++samples >= SAMPLES_PER_SLOT * WIDTH) {
+            for (int[] counts : sketch) {
+                for (int i = 0; i < WIDTH; i++) {
+                    counts[i] >>= 1;
+                }
+            }
+            samples /= 2;
+        }
+    }
+
+    /*
+     * Function: frequency
+     * @return estimated number of recent uses of the entry's key
+     */
+    private int frequency (Cache.Entry ent) {
+        int hash = key(ent).hashCode();
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, sketch[row][slot(hash, row)]);
+        }
+        return min;
+    }
+
+    public synchronized void added (Cache.Entry ent) {
+        increment(key(ent));
+    }
+
+    public synchronized void hit (Cache.Entry ent) {
+        increment(key(ent));
+        if (main.remove(ent)) {
+            main.add(ent);
+        }
+    }
+
+    public synchronized void idle (Cache.Entry ent) {
+        if (ent.clients.get() < 0) {
+            return;
+        }
+        LinkedHashSet<Cache.Entry> list = admitted.contains(ent) ? main : probation;
+        list.remove(ent);
+        list.add(ent);
+    }
+
+    public synchronized void removed (Cache.Entry ent) {
+        probation.remove(ent);
+        main.remove(ent);
+        admitted.remove(ent);
+    }
+
+    public synchronized Cache.Entry victim () {
+        while (true) {
+            Cache.Entry cand = first(probation);
+            Cache.Entry vict = first(main);
+            if (cand == null) {
+                if (vict != null) {
+                    main.remove(vict);
+                }
+                return vict;
+            }
+
+            probation.remove(cand);
+            if (vict == null) {
+                // nothing to compare with yet, so admit it and look again
+                admitted.add(cand);
+                main.add(cand);
+                continue;
+            }
+            if (frequency(cand) > frequency(vict)) {
+                admitted.add(cand);
+                main.add(cand);
+                main.remove(vict);
+                return vict;
+            }
+            return cand;
+        }
+    }
+
+    private static Cache.Entry first (LinkedHashSet<Cache.Entry> list) {
+        Iterator<Cache.Entry> it = list.iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    public synchronized List<Cache.Entry> order () {
+        ArrayList<Cache.Entry> list = new ArrayList<Cache.Entry>(probation);
+        list.addAll(main);
+        return list;
+    }
+}
@@ -1,25 +1,37 @@
-import java.io.*;
+/**
+ * File: VersionData.java
+ * Description: Cached versions of one file path
+ * Author: Joseph Jia (josephji)
+ *
+ * This file defines the per-path record of the cache's version index.
+ * It holds the cache paths of every whole version, block and write copy
+ * of one file path, so finding the stale versions of a path only looks
+ * at that path's entries instead of the whole cache.
+ */
 
-public class VersionData {
-    public File file;
-    public int version;
-    public int num_clients;
-
-    public VersionData (File f, int v, int n) {
-        file = f;
-        version = v;
-        num_clients = n;
-    }
+// Imported Libraries
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-    public void addClient () {
-        num_clients++;
-    }
+public class VersionData {
+    public Set<String> paths;
 
-    public void removeClient () {
-        num_clients--;
+    public VersionData () {
+        paths = ConcurrentHashMap.newKeySet();
     }
 
-    public boolean isStale () {
-        return num_clients == 0;
+    /*
+     * Function: newest
+     * @param p - cache path to count even if it isn't in the record yet
+     * @return the newest version among p and the versions and blocks held
+     */
+    public int newest (String p) {
+        int newest = Cache.version(p);
+        for (String path : paths) {
+            if (!Cache.isWrite(path)) {
+                newest = Math.max(newest, Cache.version(path));
+            }
+        }
+        return newest;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,241 @@
+/**
+ * File: VersionStore.java
+ * Description: Durable version numbers for the server
+ * Author: Joseph Jia (josephji)
+ *
+ * This file keeps the server's version numbers on disk, so they survive
+ * a restart and keep going up from where they were. Without it every
+ * file starts over at version 1, and proxies holding "<path>-<ver>"
+ * copies from before the restart would take new contents for the ones
+ * they have cached.
+ *
+ * Each bump is appended to a log and synced before the new contents are
+ * put in place, so the server never shows contents under a version it
+ * could forget. A crash in between only leaves a version number with no
+ * change behind it, which costs proxies a refetch. Bumps from concurrent
+ * commits share syncs: the first committer to need a sync syncs
+ * everything appended so far, and the ones that appended meanwhile wait
+ * for it instead of syncing again.
+ *
+ * When the log grows past the number of versions kept, the whole table
+ * is written to a snapshot, which replaces the old one with a rename,
+ * and the log starts over. Start-up reads the snapshot and then the log,
+ * keeping the highest version seen for each path, so a crash at any
+ * point during this leaves a table no older than what was synced. A
+ * record cut off by a crash ends the log; its commit never went through.
+ *
+ * Paths are stored relative to the server root, so the store still
+ * matches if the server is started with the root spelled differently.
+ */
+
+// Imported Libraries
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class VersionStore {
+    public static final String SNAPSHOT = ".versions";
+    public static final String LOG = ".versions.log";
+    private static final String SNAPSHOT_TMP = SNAPSHOT + ".tmp";
+    private static final int MIN_COMPACT = 65536; // log records before a snapshot is worth it
+
+    private Path root;
+    private ConcurrentHashMap<String, Integer> versions; // server path -> max version
+    private FileChannel log;
+    private long appended; // records appended
+    private long synced; // records known to be on disk
+    private boolean syncing; // a committer is syncing the log
+    private long log_records; // records in the log since the last snapshot
+    private long trailing; // bytes of a cut-off record at the end of the last file loaded
+
+    /*
+     * Function: VersionStore Constructor
+     * Loads the versions saved under a server root and opens the log
+     *
+     * @param root_dir - server root directory
+     * @param table - map to load into; bumps through record() are put in it
+     */
+    public VersionStore (String root_dir, ConcurrentHashMap<String, Integer> table) throws IOException {
+        root = Path.of(root_dir).normalize();
+        versions = table;
+        load(root.resolve(SNAPSHOT).toFile());
+        log_records = load(root.resolve(LOG).toFile());
+        log = FileChannel.open(root.resolve(LOG), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        log.truncate(log.size() - trailing);
+        log.position(log.size());
+        if (log_records > Math.max(MIN_COMPACT, versions.size())) {
+            compact();
+        }
+    }
+
+    /*
+     * Function: isOwnName
+     * @param name - name of an entry in the server root
+     * @return true if the store keeps its snapshot or log under that name
+     */
+    public static boolean isOwnName (String name) {
+        return name.equals(SNAPSHOT) || name.equals(LOG) || name.equals(SNAPSHOT_TMP);
+    }
+
+    /*
+     * Function: load
+     * Reads (path, version) records into the table, keeping the higher
+     * version where a path is already there
+     *
+     * @param file - snapshot or log
+     * @return number of records read
+     */
+    private long load (File file) throws IOException {
+        trailing = 0;
+        if (!file.exists()) {
+            return 0;
+        }
+        long n = 0;
+        long good = 0; // bytes up to the end of the last whole record
+        try (DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                String rel = in.readUTF();
+                int version = in.readInt();
+                versions.merge(root.resolve(rel).normalize().toString(), version, Math::max);
+                good += 2 + utfLength(rel) + 4;
+                n++;
+            }
+        } catch (EOFException e) {
+            // end of the file, or a record cut off by a crash
+        }
+        trailing = file.length() - good;
+        return n;
+    }
+
+    /*
+     * Function: record
+     * Saves a new version of a path and puts it in the table. Returns
+     * once the version is on disk.
+     *
+     * @param serv_path - normalized server pathname
+     * @param version - the new version
+     */
+    public void record (String serv_path, int version) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(root.relativize(Path.of(serv_path)).toString());
+            out.writeInt(version);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+        long seq;
+        synchronized (this) {
+            while (buf.hasRemaining()) {
+                log.write(buf);
+            }
+            versions.put(serv_path, version);
+            seq = ++appended;
+            log_records++;
+        }
+        sync(seq);
+        Metrics.count("server.version_records");
+
+        synchronized (this) {
+            if (log_records > Math.max(MIN_COMPACT, versions.size())) {
+                compact();
+            }
+        }
+    }
+
+    /*
+     * Function: sync
+     * Waits until a record is on disk, syncing the log if no other
+     * committer is already doing it
+     *
+     * @param seq - number of the record, from appended
+     */
+    private void sync (long seq) throws IOException {
+        while (true) {
+            long target;
+            synchronized (this) {
+                while (synced < seq && syncing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("version sync");
+                    }
+                }
+                if (synced >= seq) {
+                    return;
+                }
+                syncing = true;
+                target = appended;
+            }
+
+            boolean ok = false;
+            long start = Metrics.start();
+            try {
+                log.force(false);
+                ok = true;
+            } finally {
+                Metrics.time("server.version_sync", start);
+                synchronized (this) {
+                    syncing = false;
+                    if (ok) {
+                        synced = Math.max(synced, target);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /*
+     * Function: compact
+     * Writes the whole table to a new snapshot and starts the log over.
+     * The caller holds the monitor, so no record is appended meanwhile.
+     */
+    private void compact () throws IOException {
+        File tmp = root.resolve(SNAPSHOT_TMP).toFile();
+        try (FileOutputStream fout = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout));
+            for (Map.Entry<String, Integer> ent : versions.entrySet()) {
+                if (ent.getValue() > 1) { // 1 is what a path starts at anyway
+                    out.writeUTF(root.relativize(Path.of(ent.getKey())).toString());
+                    out.writeInt(ent.getValue());
+                }
+            }
+            out.flush();
+            fout.getFD().sync();
+        }
+        Files.move(tmp.toPath(), root.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel dir = FileChannel.open(root, StandardOpenOption.READ)) {
+            dir.force(true); // the rename has to be on disk before the log goes
+        }
+        log.truncate(0);
+        log.position(0);
+        log.force(false);
+        synced = appended; // everything appended is in the snapshot
+        log_records = 0;
+    }
+
+    /*
+     * Function: utfLength
+     * @return number of bytes writeUTF writes for a string, past its length prefix
+     */
+    private static int utfLength (String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                n += 1;
+            }
+            else if (c > 0x07FF) {
+                n += 3;
+            }
+            else {
+                n += 2;
+            }
+        }
+        return n;
+    }
+}
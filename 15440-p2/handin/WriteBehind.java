@@ -0,0 +1,330 @@
+/**
+ * File: WriteBehind.java
+ * Description: Journaled background write-back for the proxy
+ * Author: Joseph Jia (josephji)
+ *
+ * This file lets close return before a write reaches the server. The
+ * closing fd's new contents are installed in the cache as the version the
+ * server should give them and synced to disk, and the ranges written are
+ * appended to a journal in the cache directory and synced after it. One
+ * uploader thread then sends the ranges to the server in the order they
+ * were closed, read from the installed version a window at a time as a
+ * close without write-behind does, so writes to a path land in order and
+ * no delta is held in memory. The journal is replayed when the proxy
+ * starts, so a crash loses no close that returned.
+ *
+ * Until its upload is done, a version is pinned in the cache and opens
+ * on this proxy use it, so clients of this proxy read their own writes.
+ * Other proxies only see a write once its upload lands. If the
+ * server copy changed since the version the write was based on, the
+ * whole installed version is sent to replace it, as a close without
+ * write-behind does, so the last close wins. If the server ends up at
+ * a different version than the one installed locally, the local one is
+ * dropped and the next open fetches the server's.
+ *
+ * An upload that fails stays journaled and pinned and is tried again,
+ * waiting twice as long each time up to MAX_RETRY_MS, until the server
+ * takes it; later uploads wait behind it so order is kept. Each failure
+ * is logged and counted in proxy.upload_failures.
+ */
+
+// Imported Libraries
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class WriteBehind {
+    // Additional class variables
+    public static final String NAME = ".write.journal";
+    private static final byte PUT = 1;
+    private static final byte DONE = 2;
+    private static final long RETRY_MS = 1000; // wait before the first resend of a failed upload
+    private static final long MAX_RETRY_MS = 30000;
+
+    private File file;
+    private FileOutputStream out;
+    private DataOutputStream log;
+    private long next_id;
+    private int queued; // uploads logged and not done yet
+    private ConcurrentHashMap<String, Integer> pending; // server path -> newest version waiting
+    private ExecutorService uploader;
+
+    /*
+     * Class: Upload
+     * One closed write waiting to be sent to the server
+     */
+    private static class Upload {
+        long id;
+        String path; // server pathname
+        int base; // version the write was based on
+        int version; // version installed in the cache
+        String cache_path; // cache pathname of that version
+        long length; // final length of the file
+        ArrayList<long[]> ranges; // {start, end} of each range written
+    }
+
+    /*
+     * Function: WriteBehind Constructor
+     *
+     * @param cache_dir - cache directory the journal lives in
+     */
+    public WriteBehind (String cache_dir) {
+        file = new File(cache_dir, NAME);
+        pending = new ConcurrentHashMap<String, Integer>();
+        uploader = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "write-behind");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /*
+     * Function: replay
+     * Sends the writes a previous run logged and never finished, then
+     * starts a new, empty journal. The versions they were installed as
+     * are read for the written ranges and then deleted, since the server
+     * may have given the writes other numbers. Call before the cache is
+     * restored.
+     * A record cut off by a crash ends the journal; its close never
+     * returned.
+     */
+    public synchronized void replay () throws IOException {
+        file.getParentFile().mkdirs();
+        LinkedHashMap<Long, Upload> left = new LinkedHashMap<Long, Upload>();
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                     new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    byte op = in.readByte();
+                    long id = in.readLong();
+                    if (op == DONE) {
+                        left.remove(id);
+                        continue;
+                    }
+                    Upload up = new Upload();
+                    up.id = id;
+                    up.path = in.readUTF();
+                    up.base = in.readInt();
+                    up.version = in.readInt();
+                    up.cache_path = in.readUTF();
+                    up.length = in.readLong();
+                    int n = in.readInt();
+                    up.ranges = new ArrayList<long[]>(n);
+                    for (int i = 0; i < n; i++) {
+                        up.ranges.add(new long[] {in.readLong(), in.readLong()});
+                    }
+                    left.put(id, up);
+                }
+            } catch (EOFException e) {
+                // end of the journal
+            } catch (IOException e) {
+                System.err.println("write-behind journal: " + e.toString());
+            }
+        }
+        for (Upload up : left.values()) {
+            if (send(up) < 0) {
+                // interrupted; the journal is kept for the next start
+                throw new IOException("write-behind replay interrupted");
+            }
+            new File(up.cache_path).delete();
+        }
+        out = new FileOutputStream(file);
+        log = new DataOutputStream(new BufferedOutputStream(out));
+        out.getFD().sync();
+        next_id = 1;
+        queued = 0;
+    }
+
+    /*
+     * Function: version
+     * @param path - server pathname
+     * @return newest version of the path waiting to be uploaded, 0 if none
+     */
+    public int version (String path) {
+        return pending.getOrDefault(path, 0);
+    }
+
+    /*
+     * Function: submit
+     * Logs a closed write and queues it for upload. The version must
+     * already be in the cache, with a client added that the upload
+     * removes once it is done. It is synced to disk before the write is
+     * logged, since the upload and replay read the ranges from it.
+     *
+     * @param path - server pathname
+     * @param base - version the write was based on
+     * @param version - version the write was installed as
+     * @param cache_path - cache pathname of that version
+     * @param dirty - ranges written
+     * @param length - final length of the file
+     */
+    public void submit (String path, int base, int version, String cache_path,
+                        DirtyRanges dirty, long length) throws IOException {
+        Upload up = new Upload();
+        up.path = path;
+        up.base = base;
+        up.version = version;
+        up.cache_path = cache_path;
+        up.length = length;
+        up.ranges = dirty.list(length);
+        sync(new File(cache_path));
+        synchronized (this) {
+            up.id = next_id++;
+            log.writeByte(PUT);
+            log.writeLong(up.id);
+            log.writeUTF(path);
+            log.writeInt(base);
+            log.writeInt(version);
+            log.writeUTF(cache_path);
+            log.writeLong(length);
+            log.writeInt(up.ranges.size());
+            for (long[] range : up.ranges) {
+                log.writeLong(range[0]);
+                log.writeLong(range[1]);
+            }
+            log.flush();
+            out.getFD().sync();
+            queued++;
+            pending.put(path, version);
+        }
+        uploader.submit(() -> finish(up));
+    }
+
+    /*
+     * Function: await
+     * Waits until no write to a path is waiting to be uploaded, for
+     * server calls that have to come after them
+     *
+     * @param path - server pathname
+     */
+    public synchronized void await (String path) {
+        while (pending.containsKey(path)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Function: finish
+     * Uploads one write, then releases its cached version and logs it done
+     */
+    private void finish (Upload up) {
+        long start = Metrics.start();
+        int new_ver = send(up);
+        Metrics.time("proxy.upload", start);
+        if (new_ver < 0) {
+            // interrupted; the write stays journaled and pinned for replay
+            return;
+        }
+
+        Proxy.cache.removeClient(up.cache_path, false, 0);
+        if (new_ver != up.version) {
+            // the cached copy is labeled with a version the server doesn't have
+            Proxy.cache.remove(up.cache_path);
+        }
+        Proxy.leases.remove(up.path);
+        synchronized (this) {
+            pending.remove(up.path, up.version);
+            try {
+                log.writeByte(DONE);
+                log.writeLong(up.id);
+                log.flush();
+                if (--queued == 0) {
+                    // nothing is waiting, so start the journal over
+                    out.getChannel().truncate(0);
+                    out.getChannel().position(0);
+                }
+            } catch (IOException e) {
+                System.err.println("write-behind journal: " + e.toString());
+            }
+            notifyAll();
+        }
+    }
+
+    /*
+     * Function: send
+     * Sends a write to the server, trying again until the server takes
+     * it. A write based on an old version replaces the current one with
+     * the whole installed version.
+     *
+     * @return version the server gave the write, -1 if interrupted
+     */
+    private static int send (Upload up) {
+        long wait = RETRY_MS;
+        while (true) {
+            try {
+                int new_ver = upload(up);
+                if (new_ver > 0) {
+                    return new_ver;
+                }
+                System.err.println("write-behind: update failed for " + up.path + ", retrying");
+            } catch (IOException e) {
+                System.err.println("write-behind: " + e.toString() + ", retrying");
+            }
+            Metrics.count("proxy.upload_failures");
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException ie) {
+                return -1;
+            }
+            wait = Math.min(2 * wait, MAX_RETRY_MS);
+        }
+    }
+
+    /*
+     * Function: upload
+     * Uploads the written ranges of a write, read through an empty
+     * overlay on its installed version, or the whole version if the
+     * server copy moved past the base. The version is pinned until the
+     * upload is done, or left on disk by a previous run until replay has
+     * sent it.
+     *
+     * @return version the server gave the write, negative on failure
+     */
+    private static int upload (Upload up) throws IOException {
+        File scratch = File.createTempFile("write-behind", null);
+        Overlay ov = new Overlay(new File(up.cache_path), scratch);
+        try {
+            DirtyRanges written = new DirtyRanges();
+            for (long[] range : up.ranges) {
+                written.add(range[0], range[1] - range[0]);
+            }
+            int new_ver = Proxy.upload(up.path, up.base, ov, written, up.length);
+            if (new_ver == -1) {
+                // server copy changed since the base, so overwrite it with ours
+                Metrics.count("proxy.upload_conflicts");
+                DirtyRanges all = new DirtyRanges();
+                all.add(0, up.length);
+                new_ver = Proxy.upload(up.path, 0, ov, all, up.length);
+            }
+            return new_ver;
+        } finally {
+            ov.close();
+            scratch.delete();
+        }
+    }
+
+    /*
+     * Function: sync
+     * Forces a file and its directory entry to disk
+     *
+     * @param f - file to sync
+     */
+    private static void sync (File f) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+        try (FileChannel dir = FileChannel.open(f.getParentFile().toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // not every platform can sync a directory
+        }
+    }
+}
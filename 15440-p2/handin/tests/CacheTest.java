@@ -0,0 +1,158 @@
+/**
+ * File: CacheTest.java
+ * Description: Tests of Cache
+ * Author: Joseph Jia (josephji)
+ *
+ * This file checks the cache's invariants: a pinned version is never
+ * deleted, eviction brings the cache back under its capacity, and once
+ * all clients are gone curr_size matches the files left on disk and
+ * each path has at most one version left, including after many threads
+ * have raced opens, closes and new versions.
+ */
+
+// Imported Libraries
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CacheTest {
+    /*
+     * Function: cached
+     * @param dir - directory to create the file in
+     * @param name - cache pathname's last component
+     * @param size - length of the file
+     * @return the new file
+     */
+    private static File cached (File dir, String name, int size) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), new byte[size]);
+        return file;
+    }
+
+    public static void testPinnedSurvivesEviction () throws IOException {
+        File dir = Files.createTempDirectory("cache-test").toFile();
+        Cache cache = new Cache(1000);
+        String pinned = dir + "/a-1";
+        String idle = dir + "/b-1";
+        cache.put(pinned, cached(dir, "a-1", 800), true);
+        cache.put(idle, cached(dir, "b-1", 800));
+        cache.checkEvict();
+
+        Check.isTrue(new File(pinned).exists(), "pinned version on disk");
+        Check.isTrue(!new File(idle).exists(), "idle version evicted");
+        Check.equal(800L, cache.curr_size.get(), "curr_size after eviction");
+
+        cache.removeClient(pinned, false, 0);
+        cache.put(idle, cached(dir, "b-1", 800));
+        cache.checkEvict();
+        Check.isTrue(cache.curr_size.get() <= 1000, "cache back under capacity");
+        Check.equal(onDisk(dir), cache.curr_size.get(), "curr_size against the disk");
+    }
+
+    public static void testStaleVersionsRemoved () throws IOException {
+        File dir = Files.createTempDirectory("cache-test").toFile();
+        Cache cache = new Cache(1000000);
+        String old_ver = dir + "/f-1";
+        String new_ver = dir + "/f-2";
+        cache.put(old_ver, cached(dir, "f-1", 100), true);
+        cache.put(new_ver, cached(dir, "f-2", 200));
+        cache.checkStaleVersions(new_ver);
+        Check.isTrue(new File(old_ver).exists(), "stale version kept while open");
+
+        cache.removeClient(old_ver, false, 0);
+        Check.isTrue(!new File(old_ver).exists(), "stale version removed at its last close");
+        Check.isTrue(new File(new_ver).exists(), "newest version kept");
+        Check.equal(200L, cache.curr_size.get(), "curr_size after the stale version went");
+    }
+
+    /*
+     * Function: testConcurrentInvariants
+     * Runs opens, closes and new versions against one Cache from many
+     * threads, with a small capacity so eviction runs all the time
+     */
+    public static void testConcurrentInvariants () throws Exception {
+        File dir = Files.createTempDirectory("cache-test").toFile();
+        Cache cache = new Cache(200000);
+        int num_paths = 16;
+        AtomicInteger[] latest = new AtomicInteger[num_paths];
+        for (int i = 0; i < num_paths; i++) {
+            latest[i] = new AtomicInteger(0);
+        }
+        AtomicLong violations = new AtomicLong(0);
+        long end = System.currentTimeMillis() + 2000;
+
+        Thread[] workers = new Thread[8];
+        for (int t = 0; t < workers.length; t++) {
+            workers[t] = new Thread(() -> {
+                Random rand = new Random();
+                try {
+                    while (System.currentTimeMillis() < end) {
+                        int p = rand.nextInt(num_paths);
+                        String base = dir.getPath() + "/f" + p;
+                        if (rand.nextInt(5) == 0) {
+                            // a close installing a new version
+                            String path = base + "-" + latest[p].incrementAndGet();
+                            File file = new File(path);
+                            try (FileOutputStream out = new FileOutputStream(file)) {
+                                out.write(new byte[1 + rand.nextInt(20000)]);
+                            }
+                            cache.put(path, file, true);
+                            if (!file.exists()) {
+                                violations.incrementAndGet();
+                            }
+                            cache.removeClient(path, false, 0);
+                        }
+                        else {
+                            // an open of the newest version
+                            String path = base + "-" + latest[p].get();
+                            File file = cache.acquire(path);
+                            if (file == null) {
+                                continue;
+                            }
+                            Thread.yield();
+                            if (!file.exists()) {
+                                violations.incrementAndGet();
+                            }
+                            cache.removeClient(path, false, 0);
+                        }
+                    }
+                } catch (IOException e) {
+                    violations.incrementAndGet();
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        Check.equal(0L, violations.get(), "pinned versions deleted");
+
+        // all clients are gone, so only the newest version of a path may be left
+        for (int p = 0; p < num_paths; p++) {
+            cache.checkStaleVersions(dir.getPath() + "/f" + p + "-" + latest[p].get());
+        }
+        HashMap<String, Integer> per_path = new HashMap<String, Integer>();
+        for (File file : dir.listFiles()) {
+            per_path.merge(Cache.basePath(file.getPath()), 1, Integer::sum);
+        }
+        for (Map.Entry<String, Integer> e : per_path.entrySet()) {
+            Check.equal(1, e.getValue(), "versions left of " + e.getKey());
+        }
+        Check.equal(onDisk(dir), cache.curr_size.get(), "curr_size against the disk");
+    }
+
+    /*
+     * Function: onDisk
+     * @param dir - cache directory
+     * @return bytes in the files of the directory
+     */
+    private static long onDisk (File dir) {
+        long total = 0;
+        for (File file : dir.listFiles()) {
+            total += file.length();
+        }
+        return total;
+    }
+}
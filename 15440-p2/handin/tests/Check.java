@@ -0,0 +1,77 @@
+/**
+ * File: Check.java
+ * Description: Assertions for the tests
+ * Author: Joseph Jia (josephji)
+ *
+ * This file holds the few assertions the tests use. Each one throws an
+ * AssertionError saying what was expected, which RunTests reports as a
+ * failure of the test that threw it.
+ */
+
+// Imported Libraries
+import java.util.Arrays;
+import java.util.Objects;
+
+public class Check {
+    /*
+     * Function: isTrue
+     * @param cond - condition that must hold
+     * @param what - what the condition means, for the failure message
+     */
+    public static void isTrue (boolean cond, String what) {
+        if (!cond) {
+            throw new AssertionError(what);
+        }
+    }
+
+    /*
+     * Function: equal
+     * @param expected - value wanted
+     * @param actual - value got
+     * @param what - what the values are, for the failure message
+     */
+    public static void equal (Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    /*
+     * Function: sameBytes
+     * @param expected - bytes wanted
+     * @param actual - bytes got
+     * @param what - what the bytes are, for the failure message
+     */
+    public static void sameBytes (byte[] expected, byte[] actual, String what) {
+        if (!Arrays.equals(expected, actual)) {
+            throw new AssertionError(what + ": " + (actual == null ? "null" : actual.length + " bytes")
+                + " differ from the " + expected.length + " expected");
+        }
+    }
+
+    /*
+     * Interface: Body
+     * Code that is expected to throw
+     */
+    public interface Body {
+        void run () throws Exception;
+    }
+
+    /*
+     * Function: throwsA
+     * @param type - exception the body must throw
+     * @param body - code to run
+     * @param what - what the body does, for the failure message
+     */
+    public static void throwsA (Class<? extends Throwable> type, Body body, String what) {
+        try {
+            body.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e)) {
+                return;
+            }
+            throw new AssertionError(what + ": threw " + e + " instead of " + type.getSimpleName());
+        }
+        throw new AssertionError(what + ": didn't throw " + type.getSimpleName());
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * File: CodecTest.java
+ * Description: Tests of Lz and Packer
+ * Author: Joseph Jia (josephji)
+ *
+ * This file checks that every kind of chunk comes back byte for byte
+ * through Lz and through Packer's frames, including chunks too big to
+ * compress, and that damaged frames are rejected with an IOException
+ * before anything is allocated for them.
+ */
+
+// Imported Libraries
+import java.io.IOException;
+import java.util.*;
+
+public class CodecTest {
+    /*
+     * Function: samples
+     * @return chunks that compress well, badly and not at all
+     */
+    private static List<byte[]> samples () {
+        Random rand = new Random(15440);
+        ArrayList<byte[]> out = new ArrayList<byte[]>();
+        out.add(new byte[0]);
+        out.add(new byte[] {42});
+        out.add(new byte[63]);
+        out.add(new byte[1000000]);
+        byte[] random = new byte[100000];
+        rand.nextBytes(random);
+        out.add(random);
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; log.length() < 200000; i++) {
+            log.append("2026-10-17 12:00:").append(i % 60).append(" GET /files/").append(i % 97)
+               .append(" 200 ").append(rand.nextInt(5000)).append('\n');
+        }
+        out.add(log.toString().getBytes());
+        byte[] runs = new byte[70000]; // overlapping matches
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = (byte) ((i / 3) % 4);
+        }
+        out.add(runs);
+        return out;
+    }
+
+    public static void testLzRoundTrip () {
+        for (byte[] data : samples()) {
+            byte[] packed = new byte[Lz.maxLength(data.length)];
+            int n = Lz.compress(data, 0, data.length, packed, 0);
+            byte[] back = new byte[data.length];
+            Lz.decompress(packed, 0, n, back);
+            Check.sameBytes(data, back, "Lz round trip of " + data.length + " bytes");
+        }
+    }
+
+    public static void testPackerRoundTrip () throws IOException {
+        Packer packer = new Packer();
+        for (byte[] data : samples()) {
+            Check.sameBytes(data, Packer.unpack(packer.pack(data)), "frame of " + data.length + " bytes");
+        }
+        Check.equal(null, Packer.unpack(null), "unpack of null");
+    }
+
+    public static void testOversizeChunkSentRaw () throws IOException {
+        byte[] big = new byte[Packer.MAX_FRAME + 1]; // would compress very well
+        byte[] frame = new Packer().pack(big);
+        Check.equal(0, (int) frame[0], "frame type of a chunk over MAX_FRAME");
+        Check.sameBytes(big, Packer.unpack(frame), "chunk over MAX_FRAME");
+
+        byte[] max = new byte[Packer.MAX_FRAME];
+        frame = new Packer().pack(max);
+        Check.equal(1, (int) frame[0], "frame type of a MAX_FRAME chunk");
+        Check.sameBytes(max, Packer.unpack(frame), "MAX_FRAME chunk");
+    }
+
+    public static void testCorruptFramesRejected () {
+        byte[] good = new Packer().pack(samples().get(5));
+        Check.equal(1, (int) good[0], "log chunk is compressed");
+
+        Check.throwsA(IOException.class, () -> Packer.unpack(new byte[0]), "empty frame");
+        Check.throwsA(IOException.class, () -> Packer.unpack(new byte[] {7, 1, 2}), "unknown frame type");
+        Check.throwsA(IOException.class, () -> Packer.unpack(new byte[] {1, 0, 0}), "header cut off");
+        Check.throwsA(IOException.class, () -> Packer.unpack(header(-1)), "negative length");
+        Check.throwsA(IOException.class, () -> Packer.unpack(header(Integer.MAX_VALUE)),
+            "length over MAX_FRAME");
+        Check.throwsA(IOException.class, () -> Packer.unpack(header(Packer.MAX_FRAME + 1)),
+            "length one over MAX_FRAME");
+        Check.throwsA(IOException.class, () -> Packer.unpack(Arrays.copyOf(good, good.length / 2)),
+            "compressed bytes cut off");
+
+        byte[] longer = good.clone();
+        int len = ((longer[1] & 0xff) << 24) | ((longer[2] & 0xff) << 16)
+            | ((longer[3] & 0xff) << 8) | (longer[4] & 0xff);
+        len -= 10; // claims less than the block holds
+        longer[1] = (byte) (len >>> 24);
+        longer[2] = (byte) (len >>> 16);
+        longer[3] = (byte) (len >>> 8);
+        longer[4] = (byte) len;
+        Check.throwsA(IOException.class, () -> Packer.unpack(longer), "length shorter than the block");
+    }
+
+    /*
+     * Function: header
+     * @param len - raw length the frame claims
+     * @return an Lz frame with that length and a few bytes of block
+     */
+    private static byte[] header (int len) {
+        return new byte[] {1, (byte) (len >>> 24), (byte) (len >>> 16), (byte) (len >>> 8), (byte) len, 0, 0};
+    }
+}
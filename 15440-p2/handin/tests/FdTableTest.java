@@ -0,0 +1,44 @@
+/**
+ * File: FdTableTest.java
+ * Description: Tests of FdTable
+ * Author: Joseph Jia (josephji)
+ *
+ * This file checks that fd numbers only go up, so a closed fd never
+ * reaches another open's state, and that open fds stay reachable while
+ * the table grows around a long-lived one.
+ */
+
+// Imported Libraries
+import java.util.*;
+
+public class FdTableTest {
+    public static void testNumbersNeverReused () {
+        FdTable fds = new FdTable(3);
+        FdState kept = new FdState("kept", 1, "kept-1");
+        int kept_fd = fds.add(kept);
+        Check.equal(3, kept_fd, "first fd");
+
+        ArrayList<Integer> open = new ArrayList<Integer>();
+        Random rand = new Random(18);
+        int last = kept_fd;
+        for (int i = 0; i < 100000; i++) {
+            if (open.size() < 300 && (open.isEmpty() || rand.nextBoolean())) {
+                int fd = fds.add(new FdState("p", 1, "p-1"));
+                Check.isTrue(fd > last, "fd " + fd + " handed out after " + last);
+                last = fd;
+                open.add(fd);
+            }
+            else {
+                int fd = open.remove(rand.nextInt(open.size()));
+                Check.isTrue(fds.remove(fd) != null, "remove of open fd " + fd);
+                Check.equal(null, fds.get(fd), "closed fd " + fd);
+            }
+        }
+        Check.isTrue(fds.get(kept_fd) == kept, "long-lived fd still open");
+        for (int fd : open) {
+            Check.equal(fd, fds.get(fd).fd, "open fd");
+        }
+        Check.equal(null, fds.remove(kept_fd + 1), "remove of a closed fd");
+        Check.equal(null, fds.get(-1), "negative fd");
+    }
+}
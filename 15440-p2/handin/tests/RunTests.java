@@ -0,0 +1,71 @@
+/**
+ * File: RunTests.java
+ * Description: Runs the correctness tests
+ * Author: Joseph Jia (josephji)
+ *
+ * This file runs every public static test* method of the test classes,
+ * in name order, and exits with status 1 if any of them threw. Tests
+ * that need a server share one started in-process on a fresh root, so
+ * they use paths of their own.
+ *
+ * Usage: java RunTests [class...]    (all test classes by default)
+ */
+
+// Imported Libraries
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+public class RunTests {
+    private static final String[] CLASSES = {
+        "CodecTest", "CacheTest", "FdTableTest", "VersionStoreTest", "UploadTest", "WriteBehindTest"
+    };
+    private static File server_root; // null until a test asks for the server
+
+    /*
+     * Function: server
+     * Starts the shared in-process server the first time it is needed
+     *
+     * @return root directory of the server
+     */
+    public static synchronized File server () throws Exception {
+        if (server_root == null) {
+            server_root = Bench.startServer();
+        }
+        return server_root;
+    }
+
+    public static void main (String[] args) throws Exception {
+        String[] names = args.length > 0 ? args : CLASSES;
+        int run = 0;
+        int failed = 0;
+        for (String name : names) {
+            Method[] methods = Class.forName(name).getMethods();
+            Arrays.sort(methods, Comparator.comparing(Method::getName));
+            for (Method m : methods) {
+                if (!m.getName().startsWith("test") || !Modifier.isStatic(m.getModifiers())
+                        || m.getParameterCount() != 0) {
+                    continue;
+                }
+                run++;
+                long start = System.nanoTime();
+                try {
+                    m.invoke(null);
+                    System.out.printf("PASS %s.%s (%d ms)%n", name, m.getName(),
+                        (System.nanoTime() - start) / 1000000);
+                } catch (InvocationTargetException e) {
+                    failed++;
+                    System.out.printf("FAIL %s.%s: %s%n", name, m.getName(), e.getCause());
+                    if (!(e.getCause() instanceof AssertionError)) {
+                        e.getCause().printStackTrace(System.out);
+                    }
+                }
+            }
+        }
+        System.out.printf("%d tests, %d failed%n", run, failed);
+        // RMI threads of the shared server would keep the JVM up
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * File: UploadTest.java
+ * Description: Tests of uploads on the server
+ * Author: Joseph Jia (josephji)
+ *
+ * This file checks that no read ever sees part of an upload while whole
+ * files are being committed over the one it reads, and that each piece
+ * of a legacy updateFile close is visible, with its own version, as
+ * soon as the call returns.
+ */
+
+// Imported Libraries
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class UploadTest {
+    public static void testReadsNeverTorn () throws Exception {
+        RunTests.server();
+        String path = "upload-torn";
+        int size = 2000000;
+        int piece = 16 * Server.CHUNK_SIZE;
+        long end = System.nanoTime() + 2000000000L;
+        AtomicLong commits = new AtomicLong(0);
+        AtomicLong reads = new AtomicLong(0);
+        AtomicLong torn = new AtomicLong(0);
+        AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Proxy.stub.updateRanges(path, 0, new FileDelta(size, new long[0], new byte[0][]));
+
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int w = 1; w <= 2; w++) {
+            byte[] buf = new byte[piece];
+            Arrays.fill(buf, (byte) w);
+            threads.add(new Thread(() -> {
+                try {
+                    while (System.nanoTime() < end) {
+                        RemoteUpload up = Proxy.stub.beginUpload(path, 0);
+                        for (int pos = 0; pos < size; pos += piece) {
+                            up.write(pos, Arrays.copyOf(buf, Math.min(piece, size - pos)));
+                        }
+                        if (up.commit(size) < 0) {
+                            throw new IOException("commit failed");
+                        }
+                        commits.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (int r = 0; r < 2; r++) {
+            threads.add(new Thread(() -> {
+                try {
+                    while (System.nanoTime() < end) {
+                        FileStream fs = Proxy.stub.openStream(path, 1);
+                        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+                        out.write(fs.data);
+                        while (out.size() < fs.length) {
+                            out.write(fs.reader.read(piece));
+                        }
+                        Proxy.closeStream(fs);
+                        reads.incrementAndGet();
+                        byte[] got = out.toByteArray();
+                        for (byte x : got) {
+                            if (x != got[0]) {
+                                torn.incrementAndGet();
+                                break;
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Check.equal(null, error.get(), "error from a writer or reader");
+        Check.isTrue(commits.get() > 0 && reads.get() > 0, "uploads and reads ran");
+        Check.equal(0L, torn.get(), "reads that saw part of an upload");
+    }
+
+    public static void testLegacyPiecesVisible () throws Exception {
+        File root = RunTests.server();
+        String path = "upload-legacy";
+        int piece = Server.CHUNK_SIZE;
+        for (int i = 0; i < 4; i++) {
+            byte[] buf = new byte[piece];
+            Arrays.fill(buf, (byte) ('A' + i));
+            Proxy.stub.updateFile(path, buf, (long) i * piece);
+
+            byte[] got = Files.readAllBytes(new File(root, path).toPath());
+            Check.equal((i + 1) * piece, got.length, "length after piece " + i);
+            Check.equal((int) 'A' + i, (int) got[got.length - 1], "last byte after piece " + i);
+            Check.equal(i + 2, Proxy.stub.readRange(path, 0, 1).version, "version after piece " + i);
+        }
+
+        // a reader that opens between pieces keeps what it opened
+        FileStream fs = Proxy.stub.openStream(path, 0);
+        byte[] buf = new byte[piece];
+        Arrays.fill(buf, (byte) 'Z');
+        Proxy.stub.updateFile(path, buf, 0);
+        byte[] got = fs.reader.readAt(0, 1);
+        Proxy.closeStream(fs);
+        Check.equal((int) 'A', (int) got[0], "byte read from the version opened");
+        Check.equal((int) 'Z', (int) Files.readAllBytes(new File(root, path).toPath())[0], "byte on the server");
+    }
+}
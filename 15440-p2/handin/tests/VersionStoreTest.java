@@ -0,0 +1,54 @@
+/**
+ * File: VersionStoreTest.java
+ * Description: Tests of VersionStore
+ * Author: Joseph Jia (josephji)
+ *
+ * This file checks that recorded versions survive a reopen, and that a
+ * record cut off by a crash is dropped without losing the ones before
+ * it or breaking the records appended after it.
+ */
+
+// Imported Libraries
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class VersionStoreTest {
+    public static void testTornTailRecovered () throws IOException {
+        Path root = Files.createTempDirectory("version-test");
+        String a = root.resolve("a").toString();
+        String b = root.resolve("dir/b").toString();
+        String c = root.resolve("c").toString();
+
+        VersionStore store = new VersionStore(root.toString(), new ConcurrentHashMap<String, Integer>());
+        store.record(a, 3);
+        store.record(b, 7);
+        store.record(a, 5);
+
+        // half a record, as a crash in the middle of an append leaves it
+        File log = root.resolve(VersionStore.LOG).toFile();
+        long whole = log.length();
+        try (FileOutputStream out = new FileOutputStream(log, true)) {
+            out.write(new byte[] {0, 9, 'c', 'u', 't'});
+        }
+
+        ConcurrentHashMap<String, Integer> loaded = new ConcurrentHashMap<String, Integer>();
+        store = new VersionStore(root.toString(), loaded);
+        Check.equal(5, loaded.get(a), "version of a after reopen");
+        Check.equal(7, loaded.get(b), "version of dir/b after reopen");
+        Check.equal(whole, log.length(), "log length with the cut-off record dropped");
+
+        store.record(c, 2);
+        loaded = new ConcurrentHashMap<String, Integer>();
+        new VersionStore(root.toString(), loaded);
+        Check.equal(5, loaded.get(a), "version of a after the second reopen");
+        Check.equal(2, loaded.get(c), "record appended after recovery");
+        Check.equal(3, loaded.size(), "paths loaded");
+    }
+
+    public static void testOwnNames () {
+        Check.isTrue(VersionStore.isOwnName(VersionStore.LOG), "log is the store's");
+        Check.isTrue(VersionStore.isOwnName(VersionStore.SNAPSHOT), "snapshot is the store's");
+        Check.isTrue(!VersionStore.isOwnName("versions.log"), "other names aren't");
+    }
+}
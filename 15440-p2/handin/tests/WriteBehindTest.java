@@ -0,0 +1,124 @@
+/**
+ * File: WriteBehindTest.java
+ * Description: Tests of WriteBehind
+ * Author: Joseph Jia (josephji)
+ *
+ * This file checks that a close based on a version another writer
+ * replaced still wins whole, with and without write-behind, that an
+ * upload the server fails is sent again rather than dropped, and that
+ * a write whose upload never went out is sent from the journal when
+ * the proxy starts again.
+ */
+
+// Imported Libraries
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.*;
+import java.util.function.BiPredicate;
+
+public class WriteBehindTest {
+    /*
+     * Function: failing
+     * Wraps the stub so chosen calls fail as the server fails them
+     *
+     * @param real - stub to pass the other calls to
+     * @param fail - given the method name and the path, true to fail the call
+     * @return the wrapped stub
+     */
+    private static RMIInterface failing (RMIInterface real, BiPredicate<String, Object> fail) {
+        return (RMIInterface) java.lang.reflect.Proxy.newProxyInstance(RMIInterface.class.getClassLoader(),
+            new Class<?>[] {RMIInterface.class}, (p, m, args) -> {
+                if ((m.getName().equals("updateRanges") || m.getName().equals("beginUpload"))
+                        && fail.test(m.getName(), args[0])) {
+                    return m.getName().equals("beginUpload") ? null : -5;
+                }
+                try {
+                    return m.invoke(real, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+    }
+
+    /*
+     * Function: write
+     * Writes a file through a client and closes it
+     */
+    private static void write (FileHandling client, String path, byte[] data) throws IOException {
+        int fd = client.open(path, FileHandling.OpenOption.CREATE);
+        if (fd < 0 || client.write(fd, data) != data.length || client.close(fd) != 0) {
+            throw new IOException("write of " + path + " failed");
+        }
+    }
+
+    /*
+     * Function: testConflictLastCloseWins
+     * Opens a file for write, has another writer replace it, then writes
+     * one byte and closes. The server should end up with exactly what
+     * the fd saw.
+     */
+    public static void testConflictLastCloseWins () throws Exception {
+        File root = RunTests.server();
+        for (boolean behind : new boolean[] {false, true}) {
+            String path = "wb-conflict-" + behind;
+            Files.write(new File(root, path).toPath(), "AAAAAAAAAA".getBytes());
+            FileHandling client = Bench.startProxy(100000000, new String[] {"write_behind=" + behind}).newclient();
+
+            int fd = client.open(path, FileHandling.OpenOption.WRITE);
+            Proxy.stub.updateRanges(path, 0, new FileDelta(10, new long[] {0}, new byte[][] {"CCCCCCCCCC".getBytes()}));
+            if (fd < 0 || client.write(fd, "B".getBytes()) != 1 || client.close(fd) != 0) {
+                throw new IOException("write of " + path + " failed");
+            }
+            if (Proxy.write_behind != null) {
+                Proxy.write_behind.await(path);
+            }
+            Check.equal("BAAAAAAAAA", new String(Files.readAllBytes(new File(root, path).toPath())),
+                "server contents with write_behind=" + behind);
+            client.clientdone();
+        }
+    }
+
+    public static void testFailedUploadRetried () throws Exception {
+        File root = RunTests.server();
+        String path = "wb-retry";
+        FileHandling client = Bench.startProxy(100000000, new String[] {"write_behind=true"}).newclient();
+        RMIInterface real = Proxy.stub;
+        int[] fails = {2};
+        Proxy.stub = failing(real, (name, p) -> {
+            synchronized (fails) {
+                return path.equals(p) && fails[0]-- > 0;
+            }
+        });
+        try {
+            write(client, path, "hello".getBytes());
+            Proxy.write_behind.await(path);
+        } finally {
+            Proxy.stub = real;
+        }
+        Check.isTrue(fails[0] < 0, "upload sent again after the 2 failures");
+        Check.equal("hello", new String(Files.readAllBytes(new File(root, path).toPath())), "server contents");
+        client.clientdone();
+    }
+
+    public static void testJournalReplayed () throws Exception {
+        File root = RunTests.server();
+        String path = "wb-replay";
+        FileHandling client = Bench.startProxy(100000000, new String[] {"write_behind=true"}).newclient();
+        // the proxy goes away before its upload gets out: the uploader never gets through
+        RMIInterface real = Proxy.stub;
+        Proxy.stub = failing(real, (name, p) ->
+            path.equals(p) && Thread.currentThread().getName().equals("write-behind"));
+        try {
+            write(client, path, "journaled".getBytes());
+            Check.equal(0L, new File(root, path).length(), "bytes on the server before the replay");
+
+            // the next start sends it from the journal
+            WriteBehind restarted = new WriteBehind(Proxy.cache_dir);
+            restarted.replay();
+        } finally {
+            Proxy.stub = real;
+        }
+        Check.equal("journaled", new String(Files.readAllBytes(new File(root, path).toPath())),
+            "server contents after the replay");
+    }
+}